@@ -0,0 +1,132 @@
+package android.hispano.fotocach;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rutas calientes de {@link DiskLruCache} con entradas de bytes sintéticos: lectura, consulta,
+ * escritura repetida de una clave que ya está, escritura de una clave nueva con su expulsión, y
+ * el cálculo de la ruta de una clave. El número de hilos se elige con -t (ver el README).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DiskLruCacheBenchmark {
+
+    @Param({ "1000" })
+    public int entries;
+
+    @Param({ "16384" })
+    public int payloadSize;
+
+    private File mDir;
+    private DiskLruCache mCache;
+    private byte[] mPayload;
+    private String[] mKeys;
+    // Claves nuevas para las escrituras que expulsan
+    private final AtomicInteger mNextKey = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        DiskCachePlatform.setDefault(DiskCachePlatform.JVM);
+        mDir = File.createTempFile("fotocach-bench", "");
+        mDir.delete();
+        mPayload = new byte[payloadSize];
+        new Random(42).nextBytes(mPayload);
+        mKeys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            mKeys[i] = "content://com.android.contacts/contacts/" + i + "/photo";
+        }
+        // Límite de entradas justo en las precargadas: cada clave nueva expulsa una. El de bytes
+        // tiene holgura para que no sea él el que expulse
+        mCache = DiskLruCache.openCache(mDir, 2L * entries * payloadSize, entries);
+        if (mCache == null) {
+            throw new IllegalStateException("No se pudo abrir la caché en " + mDir);
+        }
+        for (String key : mKeys) {
+            mCache.put(key, mPayload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCache.clearCache();
+        mCache.close();
+        deleteRecursively(mDir);
+    }
+
+    /**
+     * Índice propio de cada hilo para recorrer las claves precargadas.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int mIndex = new Random().nextInt(1 << 16);
+
+        String next(String[] keys) {
+            return keys[mIndex++ % keys.length];
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer get(Cursor cursor) {
+        return mCache.getByteBuffer(cursor.next(mKeys));
+    }
+
+    @Benchmark
+    public boolean containsKey(Cursor cursor) {
+        return mCache.containsKey(cursor.next(mKeys));
+    }
+
+    /**
+     * La caché no sobrescribe, así que solo mide lo que cuesta descartar la escritura.
+     */
+    @Benchmark
+    public void putPresent(Cursor cursor) {
+        mCache.put(cursor.next(mKeys), mPayload);
+    }
+
+    /**
+     * Escribe una clave nueva y recorta en el mismo hilo, así el coste de la expulsión se cuenta
+     * en la operación aunque el hilo de recorte se adelante.
+     */
+    @Benchmark
+    public void putAndFlush() {
+        mCache.put("nueva/" + mNextKey.getAndIncrement(), mPayload);
+        mCache.flushCache();
+    }
+
+    @Benchmark
+    public String createFilePath(Cursor cursor) {
+        return mCache.createFilePath(cursor.next(mKeys));
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
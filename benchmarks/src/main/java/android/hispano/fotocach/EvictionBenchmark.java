@@ -0,0 +1,61 @@
+package android.hispano.fotocach;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Coste de una inserción que expulsa en una {@link MemoryCache} llena, según el tamaño de la
+ * caché y la política. Las claves recorren un espacio cuatro veces mayor que la caché, así casi
+ * todas las inserciones son de una clave ausente.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvictionBenchmark {
+
+    @Param({ "64", "1000", "10000" })
+    public int entries;
+
+    @Param({ "" + EvictionPolicy.LRU, "" + EvictionPolicy.TINY_LFU,
+            "" + EvictionPolicy.SIZE_WEIGHTED })
+    public int policy;
+
+    private MemoryCache<byte[]> mCache;
+    private String[] mKeys;
+    private final byte[] mValue = new byte[0];
+    private int mIndex = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mCache = new MemoryCache<byte[]>(entries, EvictionPolicy.create(policy, entries));
+        mKeys = new String[entries * 4];
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = "clave" + i;
+        }
+        for (int i = 0; i < entries; i++) {
+            mCache.put(mKeys[i], mValue);
+        }
+    }
+
+    @Benchmark
+    public byte[] putEvict() {
+        final String key = mKeys[mIndex];
+        mIndex = (mIndex + 1) % mKeys.length;
+        return mCache.put(key, mValue);
+    }
+}
@@ -0,0 +1,202 @@
+package android.hispano.fotocach;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproduce una traza sintética de accesos a las fotos de los contactos contra {@link MemoryCache}
+ * y {@link DiskLruCache} con cada política de expulsión, y escribe la tasa de aciertos. La traza
+ * alterna tramos de accesos con distribución Zipf, los favoritos y los contactos recientes, con
+ * pasadas por toda la lista de contactos, el caso en el que una LRU pierde sus entradas calientes.
+ * Todo sale de una semilla fija, así dos ejecuciones con los mismos argumentos dan lo mismo.
+ *
+ * java -cp target/benchmarks.jar android.hispano.fotocach.HitRatioReplay [contactos] [rondas]
+ */
+public class HitRatioReplay {
+    private static final long SEED = 42;
+    // Exponente de la distribución Zipf de los accesos
+    private static final double ZIPF_EXPONENT = 0.9;
+    // Las fotos codificadas ocupan entre estos tamaños, en bytes
+    private static final int MIN_SIZE = 256;
+    private static final int MAX_SIZE = 4096;
+    // Fracción de los bytes de todas las fotos que caben en la caché
+    private static final double CAPACITY_FRACTION = 0.1;
+
+    private static final int[] POLICIES = {
+            EvictionPolicy.LRU, EvictionPolicy.TINY_LFU, EvictionPolicy.SIZE_WEIGHTED
+    };
+    private static final String[] POLICY_NAMES = { "LRU", "TINY_LFU", "SIZE_WEIGHTED" };
+
+    private final int mContacts;
+    private final String[] mKeys;
+    private final byte[][] mPayloads;
+    private final long mCapacityBytes;
+    private final int mExpectedEntries;
+    // Índices de contacto de la traza; los negativos son parte de una pasada (-1 - índice)
+    private final int[] mTrace;
+    private final int mWarmup;
+
+    public static void main(String[] args) throws IOException {
+        final int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        DiskCachePlatform.setDefault(DiskCachePlatform.JVM);
+
+        final HitRatioReplay replay = new HitRatioReplay(contacts, rounds);
+        System.out.println("contactos=" + contacts + " rondas=" + rounds + " accesos="
+                + (replay.mTrace.length - replay.mWarmup) + " capacidad="
+                + replay.mCapacityBytes + " bytes");
+        System.out.println(String.format("%-8s %-14s %10s %10s", "caché", "política", "total",
+                "zipf"));
+        for (int i = 0; i < POLICIES.length; i++) {
+            print("memoria", POLICY_NAMES[i], replay.replayMemory(POLICIES[i]));
+        }
+        for (int i = 0; i < POLICIES.length; i++) {
+            print("disco", POLICY_NAMES[i], replay.replayDisk(POLICIES[i]));
+        }
+    }
+
+    private static void print(String cache, String policy, Result result) {
+        System.out.println(String.format("%-8s %-14s %9.1f%% %9.1f%%", cache, policy,
+                100.0 * result.hits / result.accesses,
+                100.0 * result.zipfHits / result.zipfAccesses));
+    }
+
+    HitRatioReplay(int contacts, int rounds) {
+        mContacts = contacts;
+        final Random random = new Random(SEED);
+
+        mKeys = new String[contacts];
+        mPayloads = new byte[contacts][];
+        long totalBytes = 0;
+        for (int i = 0; i < contacts; i++) {
+            mKeys[i] = "content://com.android.contacts/contacts/" + i + "/photo";
+            mPayloads[i] = new byte[MIN_SIZE + random.nextInt(MAX_SIZE - MIN_SIZE + 1)];
+            totalBytes += mPayloads[i].length;
+        }
+        mCapacityBytes = (long) (totalBytes * CAPACITY_FRACTION);
+        mExpectedEntries = (int) (contacts * CAPACITY_FRACTION);
+
+        // El rango de popularidad no coincide con el orden de la lista, que es el de la pasada
+        final List<Integer> ranks = new ArrayList<Integer>(contacts);
+        for (int i = 0; i < contacts; i++) {
+            ranks.add(i);
+        }
+        Collections.shuffle(ranks, random);
+        final double[] cdf = new double[contacts];
+        double sum = 0;
+        for (int i = 0; i < contacts; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+
+        // Calentamiento de Zipf y después rondas de Zipf seguidas de una pasada
+        final int zipfPerRound = contacts * 10;
+        mWarmup = zipfPerRound;
+        mTrace = new int[zipfPerRound + rounds * (zipfPerRound + contacts)];
+        int n = 0;
+        for (int round = -1; round < rounds; round++) {
+            for (int i = 0; i < zipfPerRound; i++) {
+                int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                if (rank < 0) {
+                    rank = -rank - 1;
+                }
+                mTrace[n++] = ranks.get(Math.min(rank, contacts - 1));
+            }
+            if (round >= 0) {
+                for (int i = 0; i < contacts; i++) {
+                    mTrace[n++] = -1 - i;
+                }
+            }
+        }
+    }
+
+    Result replayMemory(int policy) {
+        final MemoryCache<byte[]> cache = new MemoryCache<byte[]>((int) mCapacityBytes,
+                EvictionPolicy.create(policy, mExpectedEntries)) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        final Result result = new Result();
+        for (int n = 0; n < mTrace.length; n++) {
+            final int contact = mTrace[n] >= 0 ? mTrace[n] : -1 - mTrace[n];
+            final boolean hit = cache.get(mKeys[contact]) != null;
+            if (!hit) {
+                cache.put(mKeys[contact], mPayloads[contact]);
+            }
+            result.record(n >= mWarmup, mTrace[n] >= 0, hit);
+        }
+        return result;
+    }
+
+    Result replayDisk(int policy) throws IOException {
+        final File dir = File.createTempFile("fotocach-replay", "");
+        dir.delete();
+        // Solo limita el tamaño en bytes, como la memoria
+        final DiskLruCache cache = DiskLruCache.openCache(dir, mCapacityBytes, mContacts);
+        if (cache == null) {
+            throw new IOException("No se pudo abrir la caché en " + dir);
+        }
+        cache.setEvictionPolicy(EvictionPolicy.create(policy, mExpectedEntries));
+        final Result result = new Result();
+        try {
+            for (int n = 0; n < mTrace.length; n++) {
+                final int contact = mTrace[n] >= 0 ? mTrace[n] : -1 - mTrace[n];
+                final boolean hit = cache.getByteBuffer(mKeys[contact]) != null;
+                if (!hit) {
+                    cache.put(mKeys[contact], mPayloads[contact]);
+                    // El recorte termina antes del siguiente acceso, como si no hubiera hilo
+                    cache.flushCache();
+                }
+                result.record(n >= mWarmup, mTrace[n] >= 0, hit);
+            }
+        } finally {
+            cache.clearCache();
+            cache.close();
+            deleteRecursively(dir);
+        }
+        return result;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Aciertos de la parte medida de la traza, en total y solo de los accesos Zipf.
+     */
+    static final class Result {
+        long accesses;
+        long hits;
+        long zipfAccesses;
+        long zipfHits;
+
+        void record(boolean measured, boolean zipf, boolean hit) {
+            if (!measured) {
+                return;
+            }
+            accesses++;
+            if (hit) {
+                hits++;
+            }
+            if (zipf) {
+                zipfAccesses++;
+                if (hit) {
+                    zipfHits++;
+                }
+            }
+        }
+    }
+}
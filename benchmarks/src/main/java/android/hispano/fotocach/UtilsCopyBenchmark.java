@@ -0,0 +1,87 @@
+package android.hispano.fotocach;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.hispano.fotocach.utils.Utils;
+
+/**
+ * Rendimiento de las dos copias de {@link Utils}: de stream a stream, la de
+ * {@link DiskLruCache#put(String, java.io.InputStream)}, y de archivo a archivo, la de
+ * {@link DiskLruCache#put(String, File)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilsCopyBenchmark {
+
+    @Param({ "4096", "65536", "1048576" })
+    public int size;
+
+    private byte[] mData;
+    private File mSource;
+    private File mDestination;
+
+    // Descarta lo que recibe, así solo se mide la copia
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mData = new byte[size];
+        new Random(42).nextBytes(mData);
+        mSource = File.createTempFile("fotocach-copy", ".src");
+        mDestination = File.createTempFile("fotocach-copy", ".dst");
+        final FileOutputStream out = new FileOutputStream(mSource);
+        try {
+            out.write(mData);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSource.delete();
+        mDestination.delete();
+    }
+
+    @Benchmark
+    public int copyStream() throws IOException {
+        return Utils.copy(new ByteArrayInputStream(mData), NULL_STREAM);
+    }
+
+    @Benchmark
+    public long copyFile() throws IOException {
+        return Utils.copy(mSource, mDestination);
+    }
+}
@@ -0,0 +1,56 @@
+package android.hispano.fotocach;
+
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * Codifica y decodifica los bitmaps de la caché de disco. La caché solo trata con archivos y bytes;
+ * todo lo que depende de {@link android.graphics.BitmapFactory} y de {@link Bitmap#compress} pasa
+ * por aquí, y el resto de lo que necesita de Android por {@link DiskCachePlatform}. Las firmas
+ * siguen usando {@link Bitmap}, así que en una JVM normal hace falta el android.jar de stubs en el
+ * classpath, pero solo como tipos: mientras se escriban y lean bytes o archivos no se llama a
+ * ninguna clase de android.graphics.
+ */
+public interface BitmapCodec {
+
+    /**
+     * Codec por defecto, con {@link BitmapDecoder} y {@link Bitmap#compress}.
+     */
+    BitmapCodec DEFAULT = new BitmapCodec() {
+        @Override
+        public Bitmap decode(byte[] data, int offset, int length, int reqWidth, int reqHeight,
+                BitmapPool pool) {
+            return BitmapDecoder.decodeSampledBitmapFromByteArray(data, offset, length,
+                    reqWidth, reqHeight, pool);
+        }
+
+        @Override
+        public boolean encode(Bitmap bitmap, CompressFormat format, int quality,
+                OutputStream out) {
+            return bitmap.compress(format, quality, out);
+        }
+    };
+
+    /**
+     * Decodifica al tamaño pedido los bytes de una entrada de la caché.
+     *
+     * @param data El buffer con los bytes codificados
+     * @param offset La posición de los bytes en el buffer
+     * @param length El número de bytes
+     * @param reqWidth El ancho pedido o 0 para el tamaño original
+     * @param reqHeight El alto pedido o 0 para el tamaño original
+     * @param pool El pool de bitmaps reutilizables o null
+     * @return El bitmap o null si no se pudo decodificar
+     */
+    Bitmap decode(byte[] data, int offset, int length, int reqWidth, int reqHeight,
+            BitmapPool pool);
+
+    /**
+     * Escribe el bitmap codificado en el stream.
+     *
+     * @return true si se escribió correctamente
+     */
+    boolean encode(Bitmap bitmap, CompressFormat format, int quality, OutputStream out);
+}
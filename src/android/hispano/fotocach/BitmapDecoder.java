@@ -0,0 +1,271 @@
+package android.hispano.fotocach;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Decodifica bitmaps al tamaño en el que se van a mostrar. Primero lee solo las dimensiones de la
+ * imagen y después la decodifica con el inSampleSize adecuado, así un avatar de 48dp no ocupa en
+ * memoria lo que la foto original. Si se le pasa un {@link BitmapPool} decodifica sobre un bitmap
+ * reutilizado cuando es posible.
+ */
+public class BitmapDecoder {
+    private static final String TAG = "BitmapDecoder";
+
+    private BitmapDecoder() {};
+
+    /**
+     * Decodifica un archivo submuestreado para que no sea menor que el tamaño pedido.
+     *
+     * @param file La ruta del archivo
+     * @param reqWidth El ancho pedido o 0 si no importa
+     * @param reqHeight El alto pedido o 0 si no importa
+     * @return El bitmap o null si no se pudo decodificar
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String file, int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromFile(file, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Como {@link #decodeSampledBitmapFromFile(String, int, int)} reutilizando un bitmap del pool.
+     *
+     * @param pool El pool de bitmaps reutilizables o null
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String file, int reqWidth, int reqHeight,
+            BitmapPool pool) {
+        return decodeSampledBitmapFromFile(file, reqWidth, reqHeight, pool, null);
+    }
+
+    /**
+     * Como {@link #decodeSampledBitmapFromFile(String, int, int, BitmapPool)} pero abortando el
+     * decode si se cancela la señal.
+     *
+     * @param signal La señal de cancelación o null
+     * @return El bitmap o null si no se pudo decodificar o se canceló
+     */
+    public static Bitmap decodeSampledBitmapFromFile(String file, int reqWidth, int reqHeight,
+            BitmapPool pool, CancelSignal signal) {
+        if (reqWidth <= 0 && reqHeight <= 0 && pool == null && signal == null) {
+            return BitmapFactory.decodeFile(file);
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file, options);
+
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        if (!startDecode(options, signal)) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        try {
+            if (addInBitmapOptions(options, pool)) {
+                try {
+                    bitmap = BitmapFactory.decodeFile(file, options);
+                    return bitmap;
+                } catch (final IllegalArgumentException e) {
+                    // El bitmap reutilizado no era compatible, se decodifica en uno nuevo
+                    Log.w(TAG, "inBitmap descartado: " + e.getMessage());
+                    clearInBitmapOptions(options, pool);
+                }
+            }
+            bitmap = BitmapFactory.decodeFile(file, options);
+            return bitmap;
+        } finally {
+            finishDecode(options, signal, pool, bitmap);
+        }
+    }
+
+    /**
+     * Decodifica un array de bytes submuestreado para que no sea menor que el tamaño pedido.
+     *
+     * @param data Los bytes codificados de la imagen
+     * @param reqWidth El ancho pedido o 0 si no importa
+     * @param reqHeight El alto pedido o 0 si no importa
+     * @return El bitmap o null si no se pudo decodificar
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int reqWidth,
+            int reqHeight) {
+        return decodeSampledBitmapFromByteArray(data, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Como {@link #decodeSampledBitmapFromByteArray(byte[], int, int)} reutilizando un bitmap del
+     * pool.
+     *
+     * @param pool El pool de bitmaps reutilizables o null
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int reqWidth,
+            int reqHeight, BitmapPool pool) {
+        return decodeSampledBitmapFromByteArray(data, 0, data.length, reqWidth, reqHeight, pool);
+    }
+
+    /**
+     * Como {@link #decodeSampledBitmapFromByteArray(byte[], int, int, BitmapPool)} con los bytes
+     * en una parte del array, por ejemplo un buffer de lectura reutilizado.
+     *
+     * @param offset La posición de los bytes en el array
+     * @param length El número de bytes
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length,
+            int reqWidth, int reqHeight, BitmapPool pool) {
+        return decodeSampledBitmapFromByteArray(data, offset, length, reqWidth, reqHeight, pool,
+                null);
+    }
+
+    /**
+     * Como {@link #decodeSampledBitmapFromByteArray(byte[], int, int, int, int, BitmapPool)} pero
+     * abortando el decode si se cancela la señal.
+     *
+     * @param signal La señal de cancelación o null
+     * @return El bitmap o null si no se pudo decodificar o se canceló
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(byte[] data, int offset, int length,
+            int reqWidth, int reqHeight, BitmapPool pool, CancelSignal signal) {
+        if (reqWidth <= 0 && reqHeight <= 0 && pool == null && signal == null) {
+            return BitmapFactory.decodeByteArray(data, offset, length);
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        if (!startDecode(options, signal)) {
+            return null;
+        }
+        Bitmap bitmap = null;
+        try {
+            if (addInBitmapOptions(options, pool)) {
+                try {
+                    bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+                    return bitmap;
+                } catch (final IllegalArgumentException e) {
+                    // El bitmap reutilizado no era compatible, se decodifica en uno nuevo
+                    Log.w(TAG, "inBitmap descartado: " + e.getMessage());
+                    clearInBitmapOptions(options, pool);
+                }
+            }
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+            return bitmap;
+        } finally {
+            finishDecode(options, signal, pool, bitmap);
+        }
+    }
+
+    /**
+     * Registra el decode en la señal. Devuelve false si la carga ya estaba cancelada y no merece
+     * la pena empezarlo.
+     */
+    private static boolean startDecode(BitmapFactory.Options options, CancelSignal signal) {
+        if (signal == null) {
+            return true;
+        }
+        if (signal.isCanceled()) {
+            return false;
+        }
+        signal.setDecodeOptions(options);
+        return true;
+    }
+
+    /**
+     * Quita el decode de la señal. Si se abortó, el bitmap del pool que se iba a reutilizar
+     * vuelve al pool.
+     */
+    @SuppressLint("NewApi")
+    private static void finishDecode(BitmapFactory.Options options, CancelSignal signal,
+            BitmapPool pool, Bitmap bitmap) {
+        if (signal == null) {
+            return;
+        }
+        signal.setDecodeOptions(null);
+        if (bitmap == null && pool != null && BitmapPool.isSupported()
+                && options.inBitmap != null) {
+            pool.put(options.inBitmap);
+        }
+    }
+
+    /**
+     * Prepara las opciones para decodificar sobre un bitmap del pool. Los bitmaps se decodifican
+     * mutables para poder volver al pool cuando se expulsen de la caché.
+     *
+     * @return true si se asignó un inBitmap
+     */
+    @SuppressLint("NewApi")
+    private static boolean addInBitmapOptions(BitmapFactory.Options options, BitmapPool pool) {
+        if (pool == null || !BitmapPool.isSupported()) {
+            return false;
+        }
+        options.inMutable = true;
+        options.inBitmap = pool.get(options);
+        return options.inBitmap != null;
+    }
+
+    /**
+     * Quita el inBitmap de las opciones para reintentar el decode sin él. El bitmap no se ha
+     * llegado a usar, así que vuelve al pool en vez de perderse.
+     */
+    @SuppressLint("NewApi")
+    private static void clearInBitmapOptions(BitmapFactory.Options options, BitmapPool pool) {
+        if (options.inBitmap != null && pool != null) {
+            pool.put(options.inBitmap);
+        }
+        options.inBitmap = null;
+    }
+
+    /**
+     * Calcula el mayor inSampleSize potencia de dos que mantiene el bitmap decodificado igual o
+     * mayor que el tamaño pedido. Una dimensión pedida de 0 no limita.
+     *
+     * @param options Las opciones con outWidth y outHeight ya leídos
+     * @param reqWidth El ancho pedido
+     * @param reqHeight El alto pedido
+     * @return El valor para inSampleSize
+     */
+    public static int calculateInSampleSize(BitmapFactory.Options options,
+            int reqWidth, int reqHeight) {
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        int inSampleSize = 1;
+
+        if (width <= 0 || height <= 0 || (reqWidth <= 0 && reqHeight <= 0)) {
+            return inSampleSize;
+        }
+
+        while ((reqWidth <= 0 || width / (inSampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || height / (inSampleSize * 2) >= reqHeight)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Escala el bitmap para que quepa en el tamaño pedido manteniendo la proporción. Si ya es igual
+     * o menor lo devuelve tal cual.
+     *
+     * @param bitmap El bitmap submuestreado
+     * @param reqWidth El ancho pedido o 0 si no importa
+     * @param reqHeight El alto pedido o 0 si no importa
+     * @return El bitmap escalado
+     */
+    public static Bitmap scaleToRequestedSize(Bitmap bitmap, int reqWidth, int reqHeight) {
+        if (bitmap == null || (reqWidth <= 0 && reqHeight <= 0)) {
+            return bitmap;
+        }
+
+        final float scaleX = reqWidth > 0 ? (float) reqWidth / bitmap.getWidth() : Float.MAX_VALUE;
+        final float scaleY = reqHeight > 0 ? (float) reqHeight / bitmap.getHeight() : Float.MAX_VALUE;
+        final float scale = Math.min(scaleX, scaleY);
+        if (scale >= 1f) {
+            return bitmap;
+        }
+
+        final int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        final int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+}
@@ -0,0 +1,195 @@
+package android.hispano.fotocach;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.hispano.fotocach.utils.Utils;
+import android.os.Build;
+
+/**
+ * Pool de bitmaps reutilizables para {@link BitmapFactory.Options#inBitmap}. Se llena con los
+ * bitmaps que expulsa la caché de memoria y con los de tasks cancelados, así los decodes siguientes
+ * reutilizan su buffer de píxeles en lugar de reservar uno nuevo.
+ *
+ * Los bitmaps se agrupan por tamaño en bytes. Antes de KitKat solo sirve un bitmap de las mismas
+ * dimensiones y sin submuestreo; desde KitKat basta con que sea suficientemente grande.
+ */
+public class BitmapPool {
+    // Build.VERSION_CODES.KITKAT
+    private static final int KITKAT = 19;
+    // No se reutiliza un bitmap que desperdicie más de este factor de memoria
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+    // Orden de llegada para descartar los más antiguos cuando se supera el tamaño
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+    private final int mMaxSize;
+    private int mSize = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /**
+     * @param maxSize El tamaño máximo del pool en bytes
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Devuelve true si el dispositivo admite inBitmap (Honeycomb o posterior).
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Añade un bitmap al pool. Solo se aceptan bitmaps mutables que no estén reciclados.
+     *
+     * @param bitmap El bitmap que ya no se va a mostrar
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int size = Utils.getBitmapSize(bitmap);
+        if (size > mMaxSize || mOrder.contains(bitmap)) {
+            return;
+        }
+
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Busca un bitmap en el que se pueda decodificar la imagen descrita por las opciones, que
+     * deben tener ya outWidth, outHeight e inSampleSize. El bitmap devuelto sale del pool.
+     *
+     * @param options Las opciones del decode después de leer las dimensiones
+     * @return Un bitmap reutilizable o null si no hay ninguno
+     */
+    @SuppressLint("NewApi")
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        if (!isSupported()) {
+            return null;
+        }
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        final int required = width * height * getBytesPerPixel(options.inPreferredConfig);
+
+        if (width > 0 && height > 0) {
+            Integer key = mBuckets.ceilingKey(required);
+            while (key != null && (Build.VERSION.SDK_INT >= KITKAT
+                    ? key <= required * MAX_SIZE_MULTIPLE : key == required)) {
+                final Iterator<Bitmap> it = mBuckets.get(key).iterator();
+                while (it.hasNext()) {
+                    final Bitmap candidate = it.next();
+                    if (canUseForInBitmap(candidate, options, sampleSize)) {
+                        it.remove();
+                        remove(key, candidate);
+                        mHitCount++;
+                        return candidate;
+                    }
+                }
+                key = mBuckets.higherKey(key);
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options,
+            int sampleSize) {
+        if (Build.VERSION.SDK_INT >= KITKAT) {
+            return options.inPreferredConfig == null
+                    || candidate.getConfig() == options.inPreferredConfig;
+        }
+        // Antes de KitKat las dimensiones tienen que coincidir y no puede haber submuestreo
+        return sampleSize == 1 && candidate.getWidth() == options.outWidth
+                && candidate.getHeight() == options.outHeight;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+
+    /**
+     * Quita el bitmap del orden de llegada y del tamaño. Su cubo ya se actualizó.
+     */
+    private void remove(Integer key, Bitmap bitmap) {
+        if (mBuckets.get(key).isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mOrder.remove(bitmap);
+        mSize -= key;
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            final Bitmap eldest = mOrder.getFirst();
+            final Integer key = Utils.getBitmapSize(eldest);
+            mBuckets.get(key).remove(eldest);
+            remove(key, eldest);
+        }
+    }
+
+    /**
+     * Vacía el pool.
+     */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mOrder.clear();
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",buckets=" + bucketSummary() + "]";
+    }
+
+    private String bucketSummary() {
+        final StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Integer, LinkedList<Bitmap>> entry : mBuckets.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(entry.getKey()).append('x').append(entry.getValue().size());
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,218 @@
+package android.hispano.fotocach;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Contadores e histogramas de rendimiento de las cachés y del cargador. Todos los componentes
+ * registran sus eventos en la instancia del proceso, {@link #getDefault()}, y se pueden leer con
+ * {@link #snapshot()} para exportarlos y ajustar los tamaños de {@link ImageCache.ImageCacheParams}
+ * con datos reales. Un {@link Listener} opcional recibe cada evento según ocurre.
+ */
+public class CacheStats {
+
+    // Eventos contados
+    public static final int MEMORY_HIT = 0;
+    public static final int MEMORY_MISS = 1;
+    public static final int MEMORY_EVICTION = 2;
+    public static final int DISK_HIT = 3;
+    public static final int DISK_MISS = 4;
+    public static final int DISK_EVICTION = 5;
+    public static final int DISK_BYTES_READ = 6;
+    public static final int DISK_BYTES_WRITTEN = 7;
+    public static final int PROVIDER_FETCH = 8;
+    public static final int CANCELLATION = 9;
+    // Segundo nivel de la caché de memoria, solo se consulta tras un fallo del primero
+    public static final int SOFT_HIT = 10;
+    public static final int SOFT_MISS = 11;
+    // Caché de bytes codificados, se consulta antes que el disco
+    public static final int ENCODED_HIT = 12;
+    public static final int ENCODED_MISS = 13;
+    // Eventos con duración, en microsegundos, que además alimentan un histograma
+    public static final int DECODE_TIME = 14;
+    public static final int ENCODE_TIME = 15;
+    public static final int PROVIDER_FETCH_TIME = 16;
+    public static final int QUEUE_WAIT_TIME = 17;
+    private static final int EVENT_COUNT = 18;
+    private static final int FIRST_TIMED_EVENT = DECODE_TIME;
+
+    private static final String[] EVENT_NAMES = {
+        "memoryHit", "memoryMiss", "memoryEviction", "diskHit", "diskMiss", "diskEviction",
+        "diskBytesRead", "diskBytesWritten", "providerFetch", "cancellation", "softHit", "softMiss",
+        "encodedHit", "encodedMiss",
+        "decodeTime", "encodeTime", "providerFetchTime", "queueWaitTime"
+    };
+
+    /**
+     * Número de cubos de los histogramas. El cubo i cuenta las duraciones menores de 2^i ms, el
+     * último todas las demás.
+     */
+    public static final int HISTOGRAM_BUCKETS = 12;
+
+    private static final CacheStats sDefault = new CacheStats();
+
+    private final AtomicLongArray mValues = new AtomicLongArray(EVENT_COUNT);
+    // Número de muestras de cada evento con duración
+    private final AtomicLongArray mSamples = new AtomicLongArray(EVENT_COUNT);
+    private final AtomicLongArray mHistograms = new AtomicLongArray(EVENT_COUNT * HISTOGRAM_BUCKETS);
+    private volatile Listener mListener;
+
+    /**
+     * Recibe cada evento registrado. Se llama en el hilo que registra el evento, así que debe ser
+     * rápido.
+     */
+    public interface Listener {
+        /**
+         * @param event Una de las constantes de evento de {@link CacheStats}
+         * @param value 1 para los contadores, los bytes o la duración en microsegundos
+         */
+        void onEvent(int event, long value);
+    }
+
+    /**
+     * Devuelve las estadísticas del proceso.
+     */
+    public static CacheStats getDefault() {
+        return sDefault;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Cuenta una ocurrencia del evento.
+     */
+    public void record(int event) {
+        record(event, 1);
+    }
+
+    /**
+     * Suma un valor al evento: bytes para los eventos de bytes, microsegundos para los de duración.
+     */
+    public void record(int event, long value) {
+        mValues.addAndGet(event, value);
+        if (event >= FIRST_TIMED_EVENT) {
+            mSamples.incrementAndGet(event);
+            mHistograms.incrementAndGet(event * HISTOGRAM_BUCKETS + bucketFor(value));
+        }
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onEvent(event, value);
+        }
+    }
+
+    /**
+     * Registra la duración desde startNanos, obtenido con {@link System#nanoTime()}.
+     */
+    public void recordTime(int event, long startNanos) {
+        record(event, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    private static int bucketFor(long micros) {
+        long millis = micros / 1000;
+        int bucket = 0;
+        while (millis > 0 && bucket < HISTOGRAM_BUCKETS - 1) {
+            millis >>= 1;
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Devuelve una copia de los valores actuales.
+     */
+    public Snapshot snapshot() {
+        final long[] values = new long[EVENT_COUNT];
+        final long[] samples = new long[EVENT_COUNT];
+        final long[] histograms = new long[EVENT_COUNT * HISTOGRAM_BUCKETS];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            values[i] = mValues.get(i);
+            samples[i] = mSamples.get(i);
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = mHistograms.get(i);
+        }
+        return new Snapshot(values, samples, histograms);
+    }
+
+    /**
+     * Pone todos los valores a cero.
+     */
+    public void reset() {
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            mValues.set(i, 0);
+            mSamples.set(i, 0);
+        }
+        for (int i = 0; i < EVENT_COUNT * HISTOGRAM_BUCKETS; i++) {
+            mHistograms.set(i, 0);
+        }
+    }
+
+    /**
+     * Copia inmutable de las estadísticas en un momento dado.
+     */
+    public static class Snapshot {
+        private final long[] mValues;
+        private final long[] mSamples;
+        private final long[] mHistograms;
+
+        private Snapshot(long[] values, long[] samples, long[] histograms) {
+            mValues = values;
+            mSamples = samples;
+            mHistograms = histograms;
+        }
+
+        /**
+         * Devuelve el total del evento: ocurrencias, bytes o microsegundos.
+         */
+        public long get(int event) {
+            return mValues[event];
+        }
+
+        /**
+         * Devuelve el número de muestras de un evento con duración.
+         */
+        public long getSamples(int event) {
+            return mSamples[event];
+        }
+
+        /**
+         * Devuelve la duración media en microsegundos de un evento con duración.
+         */
+        public long getAverage(int event) {
+            return mSamples[event] > 0 ? mValues[event] / mSamples[event] : 0;
+        }
+
+        /**
+         * Devuelve el cubo del histograma de un evento con duración, ver
+         * {@link CacheStats#HISTOGRAM_BUCKETS}.
+         */
+        public long getHistogramBucket(int event, int bucket) {
+            return mHistograms[event * HISTOGRAM_BUCKETS + bucket];
+        }
+
+        /**
+         * Devuelve la tasa de aciertos entre 0 y 1 de un par de eventos acierto/fallo, por ejemplo
+         * {@link CacheStats#MEMORY_HIT} y {@link CacheStats#MEMORY_MISS}.
+         */
+        public float getHitRatio(int hitEvent, int missEvent) {
+            final long total = mValues[hitEvent] + mValues[missEvent];
+            return total > 0 ? (float) mValues[hitEvent] / total : 0f;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("CacheStats[");
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(EVENT_NAMES[i]).append('=').append(mValues[i]);
+                if (i >= FIRST_TIMED_EVENT) {
+                    builder.append("us/").append(mSamples[i]);
+                }
+            }
+            return builder.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package android.hispano.fotocach;
+
+import android.graphics.BitmapFactory;
+
+/**
+ * Señal de cancelación cooperativa de una carga. El task que carga la imagen la pasa por la
+ * consulta al proveedor y el decode: entre consulta y consulta se comprueba {@link #isCanceled()}
+ * y el decode en curso se aborta con {@link BitmapFactory.Options#requestCancelDecode()}.
+ *
+ * {@link android.os.CancellationSignal} solo existe desde Jelly Bean, por eso las consultas no se
+ * pueden interrumpir a medias y solo se evita lanzar las siguientes.
+ */
+public class CancelSignal {
+    private volatile boolean mCanceled = false;
+    // Opciones del decode en curso, para poder abortarlo desde otro hilo
+    private BitmapFactory.Options mDecodeOptions;
+
+    /**
+     * Cancela la carga. Si hay un decode en curso se le pide que termine cuanto antes.
+     */
+    public void cancel() {
+        final BitmapFactory.Options options;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            options = mDecodeOptions;
+        }
+        if (options != null) {
+            options.requestCancelDecode();
+        }
+    }
+
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Registra las opciones del decode que va a empezar, o null cuando termina. Si la carga ya
+     * estaba cancelada se pide la cancelación en el momento.
+     */
+    void setDecodeOptions(BitmapFactory.Options options) {
+        synchronized (this) {
+            mDecodeOptions = options;
+            if (!mCanceled || options == null) {
+                return;
+            }
+        }
+        options.requestCancelDecode();
+    }
+
+    /**
+     * Devuelve true si la señal existe y está cancelada.
+     */
+    static boolean isCanceled(CancelSignal signal) {
+        return signal != null && signal.isCanceled();
+    }
+}
@@ -0,0 +1,388 @@
+package android.hispano.fotocach;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.hispano.fotocach.utils.Utils;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.Data;
+import android.util.Log;
+
+/**
+ * Índice email → ID de contacto. Se construye con una consulta sobre {@link Email#CONTENT_URI} en
+ * un hilo en background, se guarda en disco para que el siguiente arranque lo tenga listo enseguida
+ * y se mantiene al día con un {@link ContentObserver}. Cada actualización lee solo el ID, la
+ * versión y el contacto de cada fila, y los emails únicamente de las filas nuevas o cambiadas.
+ *
+ * Hay un índice por proceso y vive lo mismo que él: el observer se registra con el contexto de la
+ * aplicación y no se da de baja.
+ */
+public class ContactEmailIndex {
+    private static final String TAG = "ContactEmailIndex";
+    private static final String INDEX_FILE = "fotocach_emails";
+    private static final int INDEX_VERSION = 2;
+    // Agrupa las notificaciones seguidas del proveedor en una sola actualización
+    private static final long REFRESH_DELAY = 1000;
+    // SQLite admite como mucho 999 argumentos por consulta
+    private static final int MAX_QUERY_ARGS = 500;
+
+    private static ContactEmailIndex sInstance;
+
+    private final Context mContext;
+    private final File mIndexFile;
+    private final Map<String, String> mIndex = new ConcurrentHashMap<String, String>();
+    // Las filas de emails por su _ID, solo se usan en el hilo del índice
+    private final Map<String, Row> mRows = new HashMap<String, Row>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> mPendingCallbacks = new ArrayList<Runnable>();
+    private final AtomicBoolean mRefreshScheduled = new AtomicBoolean(false);
+    private volatile boolean mReady = false;
+
+    private ContactEmailIndex(Context context) {
+        mContext = context.getApplicationContext();
+        mIndexFile = new File(mContext.getCacheDir(), INDEX_FILE);
+    }
+
+    /**
+     * Devuelve el índice del proceso, creándolo y empezando a cargarlo la primera vez.
+     *
+     * @param context El contexto a utilizar
+     */
+    public static synchronized ContactEmailIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactEmailIndex(context);
+            sInstance.start();
+        }
+        return sInstance;
+    }
+
+    private void start() {
+        mContext.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                true, new ContentObserver(mMainHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        scheduleRefresh();
+                    }
+                });
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Primero el índice guardado, que basta para servir las búsquedas
+                if (readIndexFile()) {
+                    setReady();
+                }
+                refresh();
+                setReady();
+            }
+        });
+    }
+
+    /**
+     * Devuelve true cuando el índice ya puede responder búsquedas.
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Devuelve el ID del contacto con ese email, o null si no hay ninguno o el índice no está listo.
+     *
+     * @param email El email a buscar
+     */
+    public String get(String email) {
+        return email != null ? mIndex.get(email) : null;
+    }
+
+    /**
+     * Ejecuta el callback en el hilo de UI cuando el índice esté listo, inmediatamente si ya lo
+     * está.
+     *
+     * @param callback
+     */
+    public void runWhenReady(Runnable callback) {
+        synchronized (mPendingCallbacks) {
+            if (!mReady) {
+                mPendingCallbacks.add(callback);
+                return;
+            }
+        }
+        mMainHandler.post(callback);
+    }
+
+    private void setReady() {
+        final List<Runnable> callbacks;
+        synchronized (mPendingCallbacks) {
+            if (mReady) {
+                return;
+            }
+            mReady = true;
+            callbacks = new ArrayList<Runnable>(mPendingCallbacks);
+            mPendingCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            mMainHandler.post(callback);
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (!mRefreshScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRefreshScheduled.set(false);
+                        refresh();
+                    }
+                });
+            }
+        }, REFRESH_DELAY);
+    }
+
+    /**
+     * Aplica al índice los cambios del proveedor. Primero lee el ID, la versión y el contacto de
+     * todas las filas, que son números, para saber cuáles se borraron o cambiaron; después pide
+     * los emails solo de las nuevas o cambiadas. Si todavía no hay ninguna fila, como en el primer
+     * arranque sin archivo del índice, los emails se leen en esa misma consulta. Se ejecuta
+     * siempre en el hilo del índice.
+     */
+    private void refresh() {
+        final boolean full = mRows.isEmpty();
+        final Map<String, Row> current = new HashMap<String, Row>();
+        final String[] projection = full
+                ? new String[] {Email._ID, Data.DATA_VERSION, Email.CONTACT_ID, Email.DATA}
+                : new String[] {Email._ID, Data.DATA_VERSION, Email.CONTACT_ID};
+        final Cursor cursor = mContext.getContentResolver().query(Email.CONTENT_URI,
+                projection, null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            final int idColumn = cursor.getColumnIndex(Email._ID);
+            final int versionColumn = cursor.getColumnIndex(Data.DATA_VERSION);
+            final int contactColumn = cursor.getColumnIndex(Email.CONTACT_ID);
+            final int emailColumn = full ? cursor.getColumnIndex(Email.DATA) : -1;
+            while (cursor.moveToNext()) {
+                final String contactId = cursor.getString(contactColumn);
+                if (contactId != null) {
+                    String email = null;
+                    if (full) {
+                        // Una fila sin email se guarda igual, como en queryRows
+                        email = cursor.getString(emailColumn);
+                        email = email != null ? email : "";
+                    }
+                    current.put(cursor.getString(idColumn),
+                            new Row(cursor.getInt(versionColumn), contactId, email));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Filas borradas, nuevas y cambiadas de versión o de contacto
+        final Set<String> affectedEmails = new HashSet<String>();
+        final Iterator<Map.Entry<String, Row>> it = mRows.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Row> entry = it.next();
+            final Row row = current.get(entry.getKey());
+            if (row == null || row.version != entry.getValue().version
+                    || !row.contactId.equals(entry.getValue().contactId)) {
+                affectedEmails.add(entry.getValue().email);
+                it.remove();
+            }
+        }
+        final List<String> changedIds = new ArrayList<String>();
+        for (String rowId : current.keySet()) {
+            if (!mRows.containsKey(rowId)) {
+                changedIds.add(rowId);
+            }
+        }
+
+        // En la lectura completa las filas ya traen el email
+        final Map<String, Row> changed = full ? current : queryRows(changedIds);
+        for (Map.Entry<String, Row> entry : changed.entrySet()) {
+            mRows.put(entry.getKey(), entry.getValue());
+            affectedEmails.add(entry.getValue().email);
+        }
+
+        if (!affectedEmails.isEmpty()) {
+            updateIndex(affectedEmails);
+            writeIndexFile();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "refresh - " + current.size() + " filas, " + changedIds.size()
+                    + " leídas, " + affectedEmails.size() + " emails afectados");
+        }
+    }
+
+    /**
+     * Lee el email y el contacto de las filas indicadas, con una consulta por cada
+     * {@link #MAX_QUERY_ARGS} filas.
+     */
+    private Map<String, Row> queryRows(List<String> rowIds) {
+        final Map<String, Row> rows = new HashMap<String, Row>();
+        for (int start = 0; start < rowIds.size(); start += MAX_QUERY_ARGS) {
+            final List<String> chunk = rowIds.subList(start,
+                    Math.min(start + MAX_QUERY_ARGS, rowIds.size()));
+            final StringBuilder selection = new StringBuilder(Email._ID).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+            final Cursor cursor = mContext.getContentResolver().query(Email.CONTENT_URI,
+                    new String[] {Email._ID, Data.DATA_VERSION, Email.CONTACT_ID, Email.DATA},
+                    selection.toString(), chunk.toArray(new String[chunk.size()]), null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                final int idColumn = cursor.getColumnIndex(Email._ID);
+                final int versionColumn = cursor.getColumnIndex(Data.DATA_VERSION);
+                final int contactColumn = cursor.getColumnIndex(Email.CONTACT_ID);
+                final int emailColumn = cursor.getColumnIndex(Email.DATA);
+                while (cursor.moveToNext()) {
+                    final String email = cursor.getString(emailColumn);
+                    final String contactId = cursor.getString(contactColumn);
+                    // Una fila sin email se guarda igual, así no se vuelve a pedir cada vez
+                    if (contactId != null) {
+                        rows.put(cursor.getString(idColumn), new Row(cursor.getInt(versionColumn),
+                                contactId, email != null ? email : ""));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Vuelve a calcular en el índice los emails indicados a partir de las filas. Si varias filas
+     * tienen el mismo email se queda con una cualquiera, como la consulta completa.
+     */
+    private void updateIndex(Set<String> emails) {
+        final Map<String, String> updated = new HashMap<String, String>();
+        for (Row row : mRows.values()) {
+            if (row.email.length() > 0 && emails.contains(row.email)) {
+                updated.put(row.email, row.contactId);
+            }
+        }
+        for (String email : emails) {
+            final String contactId = updated.get(email);
+            if (contactId != null) {
+                mIndex.put(email, contactId);
+            } else if (email.length() > 0) {
+                mIndex.remove(email);
+            }
+        }
+    }
+
+    /**
+     * Una fila de email del proveedor.
+     */
+    private static final class Row {
+        private final int version;
+        private final String contactId;
+        private final String email;
+
+        private Row(int version, String contactId, String email) {
+            this.version = version;
+            this.contactId = contactId;
+            this.email = email;
+        }
+    }
+
+    private boolean readIndexFile() {
+        if (!mIndexFile.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mIndexFile), Utils.IO_BUFFER_SIZE));
+            if (in.readInt() != INDEX_VERSION) {
+                return false;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String rowId = in.readUTF();
+                final Row row = new Row(in.readInt(), in.readUTF(), in.readUTF());
+                mRows.put(rowId, row);
+                if (row.email.length() > 0) {
+                    mIndex.put(row.email, row.contactId);
+                }
+            }
+            return true;
+        } catch (final IOException e) {
+            Log.e(TAG, "readIndexFile - " + e.getMessage());
+            mRows.clear();
+            mIndex.clear();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {}
+            }
+        }
+    }
+
+    private void writeIndexFile() {
+        final File tmpFile = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile), Utils.IO_BUFFER_SIZE));
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mRows.size());
+            for (Map.Entry<String, Row> entry : mRows.entrySet()) {
+                final Row row = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(row.version);
+                out.writeUTF(row.contactId);
+                out.writeUTF(row.email);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mIndexFile)) {
+                Log.e(TAG, "writeIndexFile - no se pudo renombrar " + tmpFile);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "writeIndexFile - " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {}
+            }
+        }
+    }
+}
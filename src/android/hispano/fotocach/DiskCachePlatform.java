@@ -0,0 +1,131 @@
+package android.hispano.fotocach;
+
+import java.io.File;
+
+import android.content.Context;
+import android.hispano.fotocach.utils.Utils;
+import android.os.Environment;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Lo que {@link DiskLruCache} necesita de la plataforma: el espacio libre, el log, la prioridad
+ * de sus hilos y el directorio de caché de la app. En Android se usa {@link #ANDROID}; en una JVM
+ * normal, con el android.jar de stubs en el classpath, cualquier llamada a esas clases lanza
+ * "Stub!", así que se usa {@link #JVM}, que solo tira de java.io.
+ */
+public abstract class DiskCachePlatform {
+
+    /**
+     * Implementación sobre las APIs de Android.
+     */
+    public static final DiskCachePlatform ANDROID = new DiskCachePlatform() {
+        @Override
+        public long getUsableSpace(File path) {
+            return Utils.getUsableSpace(path);
+        }
+
+        @Override
+        public void logError(String tag, String msg) {
+            Log.e(tag, msg);
+        }
+
+        @Override
+        public void logDebug(String tag, String msg) {
+            if (BuildConfig.DEBUG) {
+                Log.d(tag, msg);
+            }
+        }
+
+        @Override
+        public void setBackgroundPriority() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        @Override
+        public File getCacheDir(Context context) {
+            // Comprueba si hay almacenamiento externo, de ser así, intenta usar la caché de
+            // directorio externa de lo contario usa la caché de directorio interna
+            return new File(Environment.getExternalStorageState() == Environment.MEDIA_MOUNTED ||
+                    !Utils.isExternalStorageRemovable() ?
+                    Utils.getExternalCacheDir(context).getPath() :
+                    context.getCacheDir().getPath());
+        }
+    };
+
+    /**
+     * Implementación para una JVM normal: el log va a la salida de error y los hilos se quedan
+     * con la prioridad por defecto.
+     */
+    public static final DiskCachePlatform JVM = new DiskCachePlatform() {
+        @Override
+        public long getUsableSpace(File path) {
+            return path.getUsableSpace();
+        }
+
+        @Override
+        public void logError(String tag, String msg) {
+            System.err.println(tag + ": " + msg);
+        }
+
+        @Override
+        public void logDebug(String tag, String msg) {
+        }
+
+        @Override
+        public void setBackgroundPriority() {
+        }
+
+        @Override
+        public File getCacheDir(Context context) {
+            return new File(System.getProperty("java.io.tmpdir"));
+        }
+    };
+
+    // ART también se presenta como Dalvik
+    private static volatile DiskCachePlatform sDefault =
+            "Dalvik".equals(System.getProperty("java.vm.name")) ? ANDROID : JVM;
+
+    /**
+     * Devuelve la plataforma en uso. Por defecto {@link #ANDROID} en Dalvik o ART y {@link #JVM}
+     * en cualquier otra máquina virtual.
+     */
+    public static DiskCachePlatform getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Cambia la plataforma de todas las cachés de disco. Hay que llamarlo antes de abrir la
+     * primera.
+     *
+     * @param platform
+     */
+    public static void setDefault(DiskCachePlatform platform) {
+        if (platform == null) {
+            throw new NullPointerException("platform == null");
+        }
+        sDefault = platform;
+    }
+
+    /**
+     * Devuelve el espacio usable en bytes en el path dado.
+     */
+    public abstract long getUsableSpace(File path);
+
+    public abstract void logError(String tag, String msg);
+
+    /**
+     * Solo se registra en las compilaciones de depuración.
+     */
+    public abstract void logDebug(String tag, String msg);
+
+    /**
+     * Baja la prioridad del hilo actual para que no compita con el hilo de la UI.
+     */
+    public abstract void setBackgroundPriority();
+
+    /**
+     * Devuelve el directorio de caché de la app en el que se crean las cachés de disco.
+     */
+    public abstract File getCacheDir(Context context);
+}
@@ -0,0 +1,132 @@
+package android.hispano.fotocach;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Registro de las cachés de disco abiertas en el proceso, una {@link DiskLruCache} por directorio.
+ * Quien la necesita la pide con {@link #acquire} y la devuelve con {@link #release}; se abre con
+ * la primera petición y se vuelca y se cierra en background cuando se devuelve la última. Así el ImageCache y el
+ * ImageFetcher que escriben en el mismo directorio comparten índice, journal y límites, y abrirla
+ * de nuevo no vuelve a leer el journal.
+ *
+ * Los límites de tamaño son los de quien la abrió primero. Una caché obtenida de aquí no se debe
+ * cerrar con {@link DiskLruCache#close()}.
+ */
+public final class DiskCacheRegistry {
+    private static final String TAG = "DiskCacheRegistry";
+
+    private static final Map<String, Holder> sCaches = new HashMap<String, Holder>();
+
+    private static final class Holder {
+        private final DiskLruCache cache;
+        private int refCount = 0;
+        // Se devolvió la última referencia y se está cerrando en el hilo de recorte
+        private boolean closing = false;
+
+        private Holder(DiskLruCache cache) {
+            this.cache = cache;
+        }
+    }
+
+    private DiskCacheRegistry() {}
+
+    /**
+     * Devuelve la caché del directorio, abriéndola si nadie la tenía abierta.
+     *
+     * Si se está cerrando se espera a que termine y se abre de nuevo, así que no se debe llamar
+     * desde el hilo de UI.
+     *
+     * @param cacheDir El directorio de la caché
+     * @param maxByteSize El tamaño máximo en bytes si hay que abrirla
+     * @param maxItemCount El número máximo de entradas si hay que abrirla
+     * @return La caché o null si no se pudo abrir
+     */
+    public static DiskLruCache acquire(File cacheDir, long maxByteSize, int maxItemCount) {
+        return acquire(cacheDir, maxByteSize, maxItemCount, false);
+    }
+
+    /**
+     * Como {@link #acquire(File, long, int)} pero vaciando la caché. Si nadie la tenía abierta el
+     * directorio se aparta y se borra en background en lugar de borrar archivo a archivo.
+     *
+     * @param clear true para vaciar la caché
+     */
+    public static DiskLruCache acquire(File cacheDir, long maxByteSize, int maxItemCount,
+            boolean clear) {
+        final String path = cacheDir.getAbsolutePath();
+        synchronized (sCaches) {
+            Holder holder = sCaches.get(path);
+            while (holder != null && holder.closing) {
+                try {
+                    sCaches.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                holder = sCaches.get(path);
+            }
+            // Si ya estaba abierta o no se pudo apartar se vacía archivo a archivo
+            boolean clearOpened = clear;
+            if (holder == null) {
+                if (clear && DiskLruCache.discardCacheDir(cacheDir)) {
+                    clearOpened = false;
+                }
+                final DiskLruCache cache =
+                        DiskLruCache.openCache(cacheDir, maxByteSize, maxItemCount);
+                if (cache == null) {
+                    return null;
+                }
+                holder = new Holder(cache);
+                sCaches.put(path, holder);
+            } else if (BuildConfig.DEBUG && holder.cache.getMaxByteSize() != maxByteSize) {
+                Log.d(TAG, "acquire - " + path + " ya está abierta con "
+                        + holder.cache.getMaxByteSize() + " bytes");
+            }
+            if (clearOpened) {
+                holder.cache.clearCache();
+            }
+            holder.refCount++;
+            return holder.cache;
+        }
+    }
+
+    /**
+     * Devuelve una caché obtenida con {@link #acquire}. Con la última referencia la caché se
+     * vuelca y se cierra en el hilo de recorte, sin bloquear a quien llama ni al registro.
+     */
+    public static void release(DiskLruCache cache) {
+        if (cache == null) {
+            return;
+        }
+        final String path = cache.getCacheDir().getAbsolutePath();
+        final Holder holder;
+        synchronized (sCaches) {
+            holder = sCaches.get(path);
+            if (holder == null || holder.cache != cache || holder.closing) {
+                Log.e(TAG, "release - caché no registrada: " + path);
+                return;
+            }
+            if (--holder.refCount > 0) {
+                return;
+            }
+            // Sigue registrada hasta que termine de cerrarse, así nadie abre el directorio a la vez
+            holder.closing = true;
+        }
+
+        cache.close(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sCaches) {
+                    if (sCaches.get(path) == holder) {
+                        sCaches.remove(path);
+                    }
+                    sCaches.notifyAll();
+                }
+            }
+        });
+    }
+}
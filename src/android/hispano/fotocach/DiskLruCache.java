@@ -1,58 +1,138 @@
 package android.hispano.fotocach;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.hispano.fotocach.utils.Utils;
-import android.os.Environment;
-import android.util.Log;
 
 public class DiskLruCache {
 	private static final String TAG = "DiskLruCache";
     private static final String CACHE_FILENAME_PREFIX = "cache_";
-    private static final int MAX_REMOVALS = 4;
+    // Los archivos se reparten en 256 subdirectorios según los dos primeros dígitos del hash
+    private static final int SHARD_NAME_LENGTH = 2;
+    // Tamaños del buffer de lectura: inicial, para un avatar típico, y máximo que se conserva
+    private static final int INITIAL_READ_BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_READ_BUFFER_SIZE = 512 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Número máximo de entradas por defecto
+    public static final int DEFAULT_MAX_ITEM_COUNT = 1024;
     private static final int INITIAL_CAPACITY = 32;
     private static final float LOAD_FACTOR = 0.75f;
 
+    // Journal de la caché: cabecera seguida de un registro por línea
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "android.hispano.fotocach.DiskLruCache";
+    static final String VERSION = "3";
+    // Versión anterior, sin fecha ni etiqueta en los registros CLEAN, que se sigue leyendo
+    static final String VERSION_2 = "2";
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+    private static final String TMP_SUFFIX = ".tmp";
+    // Sufijo de los directorios apartados para borrarlos en background
+    private static final String DISCARDED_SUFFIX = ".discarded-";
+    // Número de registros redundantes a partir del cual se compacta el journal
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
     private final File mCacheDir;
+    private final String mCacheDirPath;
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+    // El writer del journal solo se usa con mJournalLock tomado
+    private final Object mJournalLock = new Object();
+    private Writer mJournalWriter;
+    // Registros pendientes de escribir en el journal. Se añaden con el bloqueo del índice y se
+    // escriben con mJournalLock ya fuera de él, así ninguna lectura espera por la E/S del journal
+    private final StringBuilder mJournalBuffer = new StringBuilder();
+    private boolean mJournalFlushNeeded = false;
+    private boolean mJournalRebuildNeeded = false;
+    // Hay algo que escribir en el journal, se consulta sin bloqueo antes de tomar mJournalLock
+    private volatile boolean mJournalPending = false;
+    private boolean mClosed = false;
+    // close() ya se llamó, aunque el cierre todavía no haya terminado en el hilo de recorte
+    private volatile boolean mClosing = false;
+    private boolean mUpgradeJournal = false;
+    private int mRedundantOpCount = 0;
     private int cacheSize = 0;
-    private int cacheByteSize = 0;
-    private final int maxCacheItemSize = 64; // 64 item default
-    private long maxCacheByteSize = 1024 * 1024 * 5; // 5MB default
-    private CompressFormat mCompressFormat = CompressFormat.JPEG;
+    private long cacheByteSize = 0;
+    private final int maxCacheItemSize;
+    private final long maxCacheByteSize;
+    // Hay un recorte pendiente en el hilo de recorte
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean(false);
+    // Null hasta que se fija, para no cargar android.graphics fuera de Android; se usa JPEG
+    private CompressFormat mCompressFormat;
     private int mCompressQuality = 70;
+    private BitmapCodec mCodec = BitmapCodec.DEFAULT;
+    private EvictionPolicy mPolicy = new EvictionPolicy.Lru();
+    private final CacheStats mStats = CacheStats.getDefault();
     
     
-    private final Map<String, String> mLinkedHashMap =
-            Collections.synchronizedMap(new LinkedHashMap<String, String>(
-                    INITIAL_CAPACITY, LOAD_FACTOR, true));
+    // El índice y los registros pendientes del journal se protegen con el monitor de
+    // mLinkedHashMap, pero solo durante la actualización del índice: la codificación, el decode,
+    // la E/S de archivos y la escritura del journal van fuera.
+    private final Map<String, Entry> mLinkedHashMap =
+            new LinkedHashMap<String, Entry>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    // Claves con una escritura en curso, todavía no visibles para get
+    private final Set<String> mWritingKeys = new HashSet<String>();
+    // Claves que entraron con la caché por encima de sus límites, en orden; cada una pasa por la
+    // admisión de la política en el siguiente recorte
+    private final LinkedList<String> mTrimCandidates = new LinkedList<String>();
     
     /**
      * Constructor que no se debe llamar directamente, en lugar de utilizar
-     * {@link DiskLruCache#openCache(Context, File, long)} el cual ejecuta comprobaciones adicionales antes de
+     * {@link DiskLruCache#openCache(Context, File, long, int)} el cual ejecuta comprobaciones
+     * adicionales antes de
      * crear una instancia DiskLruCache.
      *
      * @param cacheDir
      * @param maxByteSize
+     * @param maxItemCount
      */
-    private DiskLruCache(File cacheDir, long maxByteSize) {
+    private DiskLruCache(File cacheDir, long maxByteSize, int maxItemCount) {
         mCacheDir = cacheDir;
+        mCacheDirPath = cacheDir.getAbsolutePath();
+        mJournalFile = new File(cacheDir, JOURNAL_FILE);
+        mJournalFileTmp = new File(cacheDir, JOURNAL_FILE_TMP);
         maxCacheByteSize = maxByteSize;
+        maxCacheItemSize = maxItemCount;
     }
 
     
@@ -67,6 +147,62 @@ public class DiskLruCache {
         }
     };
 
+    /**
+     * Identifica los subdirectorios en los que se reparten los archivos de la caché.
+     */
+    private static final FilenameFilter shardDirFilter = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String filename) {
+            return filename.length() == SHARD_NAME_LENGTH
+                    && Character.digit(filename.charAt(0), 16) >= 0
+                    && Character.digit(filename.charAt(1), 16) >= 0;
+        }
+    };
+
+    // Las cachés abiertas por directorio. Dos instancias sobre el mismo directorio tendrían cada
+    // una su índice y escribirían registros contradictorios en el mismo journal
+    private static final Map<String, DiskLruCache> sOpenCaches =
+            new HashMap<String, DiskLruCache>();
+
+    // Buffer de lectura por hilo, compartido por todas las cachés del proceso y reutilizado en
+    // cada acierto de disco de cualquiera de ellas
+    private static final ThreadLocal<ByteBuffer> sReadBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        }
+    };
+
+    // Un MessageDigest por hilo, no son thread-safe y crearlos no es gratis
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    // Las expulsiones se hacen en este hilo, fuera del camino de escritura
+    private static final ExecutorService sTrimExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            DiskCachePlatform.getDefault().setBackgroundPriority();
+                            r.run();
+                        }
+                    }, "FotoCach-trim");
+                    // Cerrar una caché no debe retener el proceso
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /**
      * Para recuperar una instancia de DiskLruCache.
      *
@@ -76,74 +212,635 @@ public class DiskLruCache {
      * @return
      */
     public static DiskLruCache openCache(Context context, File cacheDir, long maxByteSize) {
-        if (!cacheDir.exists()) {
-            cacheDir.mkdir();
-        }
+        return openCache(cacheDir, maxByteSize, DEFAULT_MAX_ITEM_COUNT);
+    }
+
+    /**
+     * Para recuperar una instancia de DiskLruCache con un límite de entradas.
+     *
+     * @param context
+     * @param cacheDir
+     * @param maxByteSize El tamaño máximo en bytes
+     * @param maxItemCount El número máximo de entradas
+     * @return
+     */
+    public static DiskLruCache openCache(Context context, File cacheDir, long maxByteSize,
+            int maxItemCount) {
+        return openCache(cacheDir, maxByteSize, maxItemCount);
+    }
+
+    /**
+     * Para recuperar una instancia de DiskLruCache sin contexto, por ejemplo fuera de Android con
+     * un {@link BitmapCodec} propio.
+     *
+     * @param cacheDir
+     * @param maxByteSize
+     * @return
+     */
+    public static DiskLruCache openCache(File cacheDir, long maxByteSize) {
+        return openCache(cacheDir, maxByteSize, DEFAULT_MAX_ITEM_COUNT);
+    }
+
+    /**
+     * Como {@link #openCache(File, long)} con un límite de entradas. Solo puede haber una
+     * instancia abierta por directorio: si otra lo está cerrando se espera a que termine, y si
+     * otra lo tiene abierto se devuelve null. Para compartir una caché usa
+     * {@link DiskCacheRegistry}.
+     *
+     * @param cacheDir
+     * @param maxByteSize
+     * @param maxItemCount
+     * @return
+     */
+    public static DiskLruCache openCache(File cacheDir, long maxByteSize, int maxItemCount) {
+        final String path = cacheDir.getAbsolutePath();
+        synchronized (sOpenCaches) {
+            DiskLruCache open = sOpenCaches.get(path);
+            while (open != null && open.mClosing) {
+                try {
+                    sOpenCaches.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                open = sOpenCaches.get(path);
+            }
+            if (open != null) {
+                logError("openCache - " + path + " ya está abierta, compártela con "
+                        + "DiskCacheRegistry");
+                return null;
+            }
+
+            if (!cacheDir.exists()) {
+                cacheDir.mkdir();
+            }
 
-        if (cacheDir.isDirectory() && cacheDir.canWrite()
-                && Utils.getUsableSpace(cacheDir) > maxByteSize) {
-            return new DiskLruCache(cacheDir, maxByteSize);
+            if (cacheDir.isDirectory() && cacheDir.canWrite()
+                    && DiskCachePlatform.getDefault().getUsableSpace(cacheDir) > maxByteSize) {
+                final DiskLruCache cache = new DiskLruCache(cacheDir, maxByteSize, maxItemCount);
+                try {
+                    cache.openJournal();
+                    sOpenCaches.put(path, cache);
+                    // El journal puede traer más de lo que admiten los límites actuales
+                    cache.scheduleTrim();
+                    return cache;
+                } catch (final IOException e) {
+                    logError("Error en openCache: " + e.getMessage());
+                }
+            }
         }
 
         return null;
     }
+
+    /**
+     * Restaura el índice desde el journal en una sola lectura secuencial. Si no existe o está
+     * corrupto, se eliminan los archivos de caché huérfanos y se empieza un journal nuevo.
+     */
+    private void openJournal() throws IOException {
+        if (mJournalFile.exists()) {
+            try {
+                readJournal();
+                processJournal();
+                if (mUpgradeJournal) {
+                    rebuildJournal(mLinkedHashMap.values(), mWritingKeys);
+                    mUpgradeJournal = false;
+                    return;
+                }
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(mJournalFile, true), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+                return;
+            } catch (final IOException e) {
+                logError("Journal corrupto, se reconstruye la caché: " + e.getMessage());
+                mLinkedHashMap.clear();
+                mPolicy.clear();
+                cacheSize = 0;
+                cacheByteSize = 0;
+            }
+        }
+        clearCache(mCacheDir);
+        rebuildJournal(mLinkedHashMap.values(), mWritingKeys);
+    }
+
+    private void readJournal() throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(mJournalFile), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            if (!MAGIC.equals(magic)
+                    || !(VERSION.equals(version) || VERSION_2.equals(version))) {
+                throw new IOException("cabecera de journal inesperada: " + magic + ", " + version);
+            }
+
+            final Set<String> dirtyKeys = new HashSet<String>();
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line, dirtyKeys);
+                lineCount++;
+            }
+
+            // Las escrituras que no llegaron a completarse se descartan
+            for (String key : dirtyKeys) {
+                final String file = createFilePath(key);
+                mLinkedHashMap.remove(key);
+                new File(file).delete();
+                new File(file + TMP_SUFFIX).delete();
+            }
+            mRedundantOpCount = lineCount - mLinkedHashMap.size();
+            // Un journal de la versión anterior se reescribe en la actual al abrirlo
+            mUpgradeJournal = !VERSION.equals(version);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line, Set<String> dirtyKeys) throws IOException {
+        final String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("línea de journal inesperada: " + line);
+        }
+
+        final String key = URLDecoder.decode(parts[1], "UTF-8");
+        if (CLEAN.equals(parts[0]) && parts.length >= 3 && parts.length <= 5) {
+            dirtyKeys.remove(key);
+            final Entry entry = new Entry(key, createFilePath(key));
+            entry.length = Long.parseLong(parts[2]);
+            if (parts.length >= 4) {
+                entry.timestamp = Long.parseLong(parts[3]);
+            }
+            if (parts.length == 5) {
+                entry.tag = URLDecoder.decode(parts[4], "UTF-8");
+            }
+            mLinkedHashMap.put(key, entry);
+        } else if (DIRTY.equals(parts[0]) && parts.length == 2) {
+            dirtyKeys.add(key);
+        } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+            dirtyKeys.remove(key);
+            mLinkedHashMap.remove(key);
+        } else if (READ.equals(parts[0]) && parts.length == 2) {
+            // Solo actualiza el orden de acceso
+            mLinkedHashMap.get(key);
+        } else {
+            throw new IOException("línea de journal inesperada: " + line);
+        }
+    }
+
+    /**
+     * Calcula el tamaño total de la caché a partir de las entradas restauradas.
+     */
+    private void processJournal() {
+        long total = 0;
+        for (Entry entry : mLinkedHashMap.values()) {
+            total += entry.length;
+        }
+        cacheSize = mLinkedHashMap.size();
+        cacheByteSize = total;
+        // La política empieza con el orden de acceso del journal
+        for (Entry entry : mLinkedHashMap.values()) {
+            mPolicy.onInsert(entry.key, entry.length);
+        }
+    }
+
+    /**
+     * Crea un journal nuevo sin registros redundantes a partir de una copia del índice, en su
+     * orden LRU. Sustituye al journal existente de forma atómica. Se llama con mJournalLock
+     * tomado, o al abrir la caché cuando nadie más la usa todavía.
+     *
+     * @param entries Las entradas en orden de acceso
+     * @param writingKeys Las claves con una escritura en curso
+     */
+    private void rebuildJournal(Collection<Entry> entries, Collection<String> writingKeys)
+            throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFileTmp), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+        try {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION);
+            writer.write("\n");
+            for (Entry entry : entries) {
+                writer.write(cleanRecord(entry));
+            }
+            for (String key : writingKeys) {
+                writer.write(DIRTY + ' ' + encodeKey(key) + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!mJournalFileTmp.renameTo(mJournalFile)) {
+            throw new IOException("no se pudo renombrar " + mJournalFileTmp);
+        }
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mJournalFile, true), "US-ASCII"), Utils.IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Añade un registro a los pendientes del journal. Se llama con el bloqueo del índice tomado;
+     * quien lo llama escribe después los pendientes con {@link #writeJournal()}, ya sin él. Los
+     * registros READ esperan en memoria, el resto se vuelcan a disco en la siguiente escritura.
+     */
+    private void journal(String op, String key, Entry entry) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (CLEAN.equals(op)) {
+                mJournalBuffer.append(cleanRecord(entry));
+            } else {
+                mJournalBuffer.append(op).append(' ').append(encodeKey(key)).append('\n');
+            }
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if (!READ.equals(op)) {
+            mJournalFlushNeeded = true;
+        }
+        if (!DIRTY.equals(op) && !CLEAN.equals(op)) {
+            mRedundantOpCount++;
+        }
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mLinkedHashMap.size()) {
+            mJournalRebuildNeeded = true;
+        }
+        mJournalPending = mJournalFlushNeeded || mJournalRebuildNeeded
+                || mJournalBuffer.length() >= Utils.IO_BUFFER_SIZE;
+    }
+
+    /**
+     * Escribe en el journal los registros pendientes, o lo compacta si toca. Se llama sin el
+     * bloqueo del índice: solo se toma un momento para recoger los pendientes, y la E/S se hace
+     * con mJournalLock, que mantiene los registros en orden.
+     */
+    private void writeJournal() {
+        if (!mJournalPending) {
+            return;
+        }
+        synchronized (mJournalLock) {
+            final String records;
+            final boolean flush;
+            List<Entry> entries = null;
+            List<String> writingKeys = null;
+            synchronized (mLinkedHashMap) {
+                if (!mJournalPending) {
+                    return;
+                }
+                if (mJournalRebuildNeeded) {
+                    // La copia del índice ya incluye lo que dicen los registros pendientes
+                    entries = new ArrayList<Entry>(mLinkedHashMap.values());
+                    writingKeys = new ArrayList<String>(mWritingKeys);
+                    mJournalRebuildNeeded = false;
+                    mRedundantOpCount = 0;
+                    records = null;
+                } else {
+                    records = mJournalBuffer.toString();
+                }
+                flush = mJournalFlushNeeded;
+                mJournalBuffer.setLength(0);
+                mJournalFlushNeeded = false;
+                mJournalPending = false;
+            }
+
+            if (mJournalWriter == null) {
+                return;
+            }
+            try {
+                if (entries != null) {
+                    rebuildJournal(entries, writingKeys);
+                } else {
+                    mJournalWriter.write(records);
+                    if (flush) {
+                        mJournalWriter.flush();
+                    }
+                }
+            } catch (final IOException e) {
+                logError("Error escribiendo el journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * El registro CLEAN de una entrada: clave, tamaño, fecha de escritura y, si tiene, etiqueta.
+     */
+    private static String cleanRecord(Entry entry) throws UnsupportedEncodingException {
+        final StringBuilder record = new StringBuilder(CLEAN).append(' ')
+                .append(encodeKey(entry.key)).append(' ').append(entry.length)
+                .append(' ').append(entry.timestamp);
+        if (entry.tag != null) {
+            record.append(' ').append(encodeKey(entry.tag));
+        }
+        return record.append('\n').toString();
+    }
+
+    private static String encodeKey(String key) throws UnsupportedEncodingException {
+        return URLEncoder.encode(key, "UTF-8");
+    }
+
+    /**
+     * Cierra la caché en el hilo de recorte, sin hacer esperar a quien llama: allí termina los
+     * recortes ya programados, recorta lo que sobre, vuelca los registros pendientes y cierra el
+     * journal. La instancia no debe usarse después.
+     */
+    public void close() {
+        close(null);
+    }
+
+    /**
+     * Como {@link #close()} avisando cuando la caché ya está cerrada.
+     *
+     * @param onClosed Se ejecuta en el hilo de recorte al terminar, o null
+     */
+    void close(final Runnable onClosed) {
+        mClosing = true;
+        sTrimExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Un recorte programado ya no se ejecutaría con el journal cerrado
+                    flushCache();
+                    closeJournal();
+                } finally {
+                    // El directorio queda libre para abrirlo de nuevo
+                    synchronized (sOpenCaches) {
+                        if (sOpenCaches.get(mCacheDirPath) == DiskLruCache.this) {
+                            sOpenCaches.remove(mCacheDirPath);
+                        }
+                        sOpenCaches.notifyAll();
+                    }
+                    if (onClosed != null) {
+                        onClosed.run();
+                    }
+                }
+            }
+        });
+    }
+
+    private void closeJournal() {
+        synchronized (mJournalLock) {
+            final String records;
+            synchronized (mLinkedHashMap) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                records = mJournalBuffer.toString();
+                mJournalBuffer.setLength(0);
+                mJournalPending = false;
+            }
+            if (mJournalWriter == null) {
+                return;
+            }
+            try {
+                mJournalWriter.write(records);
+                mJournalWriter.close();
+            } catch (final IOException e) {
+                logError("Error en close: " + e.getMessage());
+            }
+            mJournalWriter = null;
+        }
+    }
     
     /**
-     * Añade un bitmap a la cache del disco.
+     * Añade un bitmap a la cache del disco. La compresión y la escritura se hacen fuera del
+     * bloqueo del índice, en un archivo temporal que se renombra al confirmar la entrada, así que
+     * las lecturas y escrituras de otras claves no esperan por ella.
      *
      * @param key Un identificador único para el bitmap.
      * @param data El store del bitmap.
      */
     public void put(String key, Bitmap data) {
+        final Editor editor = edit(key);
+        if (editor == null) {
+            return;
+        }
+        try {
+            final long start = System.nanoTime();
+            final boolean written = writeBitmapToStream(data, editor.newOutputStream());
+            mStats.recordTime(CacheStats.ENCODE_TIME, start);
+            if (written) {
+                editor.commit();
+            } else {
+                editor.abort();
+            }
+        } catch (final IOException e) {
+            logError("Error en put: " + e.getMessage());
+            editor.abort();
+        }
+    }
+
+    /**
+     * Añade a la cache del disco una imagen ya codificada (JPEG, PNG...) tal cual, sin
+     * decodificarla ni volver a comprimirla.
+     *
+     * @param key Un identificador único para la imagen.
+     * @param data Los bytes codificados de la imagen.
+     */
+    public void put(String key, byte[] data) {
+        put(key, data, null);
+    }
+
+    /**
+     * Como {@link #put(String, byte[])} guardando una etiqueta con la entrada.
+     *
+     * @param tag La etiqueta de la versión de la imagen o null
+     */
+    public void put(String key, byte[] data, String tag) {
+        final Editor editor = edit(key);
+        if (editor == null) {
+            return;
+        }
+        editor.setTag(tag);
+        try {
+            editor.newOutputStream().write(data);
+            editor.commit();
+        } catch (final IOException e) {
+            logError("Error en put: " + e.getMessage());
+            editor.abort();
+        }
+    }
+
+    /**
+     * Añade a la cache del disco una imagen ya codificada leída de un stream, copiándola
+     * directamente al archivo de la entrada. El stream no se cierra.
+     *
+     * @param key Un identificador único para la imagen.
+     * @param in El stream con los bytes codificados de la imagen.
+     */
+    public void put(String key, InputStream in) {
+        final Editor editor = edit(key);
+        if (editor == null) {
+            return;
+        }
+        try {
+            Utils.copy(in, editor.newOutputStream());
+            editor.commit();
+        } catch (final IOException e) {
+            logError("Error en put: " + e.getMessage());
+            editor.abort();
+        }
+    }
+
+    /**
+     * Añade a la cache del disco una copia de un archivo con una imagen ya codificada. La copia se
+     * hace con {@link java.nio.channels.FileChannel#transferTo}, sin pasar por la aplicación.
+     *
+     * @param key Un identificador único para la imagen.
+     * @param source El archivo con los bytes codificados de la imagen.
+     */
+    public void put(String key, File source) {
+        put(key, source, null);
+    }
+
+    /**
+     * Como {@link #put(String, File)} guardando una etiqueta con la entrada.
+     *
+     * @param tag La etiqueta de la versión de la imagen o null
+     */
+    public void put(String key, File source, String tag) {
+        final Editor editor = edit(key);
+        if (editor == null) {
+            return;
+        }
+        editor.setTag(tag);
+        try {
+            editor.copyFrom(source);
+            editor.commit();
+        } catch (final IOException e) {
+            logError("Error en put: " + e.getMessage());
+            editor.abort();
+        }
+    }
+
+    /**
+     * Empieza a escribir una entrada. La entrada no es visible hasta {@link Editor#commit()}.
+     *
+     * @param key Un identificador único para la imagen.
+     * @return El editor, o null si la clave ya está en la caché, hay otra escritura en curso o la
+     *         caché se está cerrando
+     */
+    public Editor edit(String key) {
+        final String file = createFilePath(key);
         synchronized (mLinkedHashMap) {
-            if (mLinkedHashMap.get(key) == null) {
-                try {
-                    final String file = createFilePath(mCacheDir, key);
-                    if (writeBitmapToFile(data, file)) {
-                        put(key, file);
-                        flushCache();
-                    }
-                } catch (final FileNotFoundException e) {
-                    Log.e(TAG, "Error en put: " + e.getMessage());
-                } catch (final IOException e) {
-                    Log.e(TAG, "Error en put: " + e.getMessage());
-                }
+            // Ya está en la caché o hay otro hilo escribiendo la misma clave
+            if (mClosing || mLinkedHashMap.containsKey(key) || !mWritingKeys.add(key)) {
+                return null;
             }
+            journal(DIRTY, key, null);
         }
+        // El DIRTY llega a disco antes que el archivo temporal
+        writeJournal();
+        return new Editor(key, file);
     }
 
-    private void put(String key, String file) {
-        mLinkedHashMap.put(key, file);
-        cacheSize = mLinkedHashMap.size();
-        cacheByteSize += new File(file).length();
+    /**
+     * Confirma o descarta una escritura iniciada en {@link #edit(String)}.
+     */
+    private void commit(String key, String file, File tmpFile, String tag, boolean written) {
+        final long length = tmpFile.length();
+        if (written) {
+            written = tmpFile.renameTo(new File(file));
+        }
+        if (!written) {
+            tmpFile.delete();
+        }
+
+        synchronized (mLinkedHashMap) {
+            mWritingKeys.remove(key);
+            if (written) {
+                final Entry entry = new Entry(key, file);
+                entry.length = length;
+                entry.timestamp = System.currentTimeMillis();
+                entry.tag = tag;
+                mLinkedHashMap.put(key, entry);
+                mPolicy.onInsert(key, entry.length);
+                cacheSize = mLinkedHashMap.size();
+                cacheByteSize += entry.length;
+                journal(CLEAN, key, entry);
+                mStats.record(CacheStats.DISK_BYTES_WRITTEN, entry.length);
+                if (isOverLimits()) {
+                    mTrimCandidates.add(key);
+                }
+                scheduleTrim();
+            } else {
+                journal(REMOVE, key, null);
+            }
+        }
+        writeJournal();
     }
     
     /**
-     * Flush the cache, removing oldest entries if the total size is over the specified cache size.
-     * Note that this isn't keeping track of stale files in the cache directory that aren't in the
-     * HashMap. If the images and keys in the disk cache change often then they probably won't ever
-     * be removed.
+     * Programa un recorte en el hilo de recorte si la caché supera alguno de sus límites. Las
+     * peticiones seguidas se agrupan en un solo recorte.
      */
-    private void flushCache() {
-        Entry<String, String> eldestEntry;
-        File eldestFile;
-        long eldestFileSize;
-        int count = 0;
+    private void scheduleTrim() {
+        synchronized (mLinkedHashMap) {
+            if (!isOverLimits()) {
+                return;
+            }
+        }
+        if (mTrimScheduled.compareAndSet(false, true)) {
+            sTrimExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mTrimScheduled.set(false);
+                    flushCache();
+                }
+            });
+        }
+    }
 
-        while (count < MAX_REMOVALS &&
-                (cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize)) {
-            eldestEntry = mLinkedHashMap.entrySet().iterator().next();
-            eldestFile = new File(eldestEntry.getValue());
-            eldestFileSize = eldestFile.length();
-            mLinkedHashMap.remove(eldestEntry.getKey());
-            eldestFile.delete();
-            cacheSize = mLinkedHashMap.size();
-            cacheByteSize -= eldestFileSize;
-            count++;
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "flushCache - Eliminado el archivo de la caché, " + eldestFile + ", "
-                        + eldestFileSize);
+    private boolean isOverLimits() {
+        return cacheSize > maxCacheItemSize || cacheByteSize > maxCacheByteSize;
+    }
+
+    /**
+     * Flush the cache, removing oldest entries until the cache is under both the item and the
+     * byte limits. Cada expulsión toma el bloqueo del índice por separado, así las lecturas y
+     * escrituras no esperan a que termine todo el recorte. El archivo se borra con el bloqueo
+     * tomado para que una escritura nueva de la misma clave no lo pise. Se puede llamar a la vez
+     * que el hilo de recorte.
+     */
+    void flushCache() {
+        int count = 0;
+        long bytes = 0;
+        while (true) {
+            synchronized (mLinkedHashMap) {
+                // Cerrada mientras el recorte esperaba
+                if (mClosed || !isOverLimits() || mLinkedHashMap.isEmpty()) {
+                    // Las que quedan ya caben, no hace falta decidir su admisión
+                    mTrimCandidates.clear();
+                    break;
+                }
+                final String candidate = mTrimCandidates.poll();
+                final String victim = mPolicy.selectVictim(candidate);
+                if (victim == null) {
+                    break;
+                }
+                mPolicy.onRemove(victim);
+                final Entry eldestEntry = mLinkedHashMap.remove(victim);
+                if (eldestEntry == null) {
+                    continue;
+                }
+                new File(eldestEntry.file).delete();
+                cacheSize = mLinkedHashMap.size();
+                cacheByteSize -= eldestEntry.length;
+                journal(REMOVE, eldestEntry.key, null);
+                bytes += eldestEntry.length;
             }
+            mStats.record(CacheStats.DISK_EVICTION);
+            count++;
+        }
+        writeJournal();
+        if (count > 0) {
+            logDebug("flushCache - Eliminados " + count + " archivos de la caché, " + bytes
+                    + " bytes");
         }
     }
 
@@ -154,25 +851,106 @@ public class DiskLruCache {
      * @return El bitmap o null sino lo encuentra
      */
     public Bitmap get(String key) {
+        return get(key, 0, 0);
+    }
+
+    /**
+     * Obtiene un bitmap desde la cache de disco, submuestreado al tamaño pedido.
+     *
+     * @param key El identificador único para el bitmap
+     * @param reqWidth El ancho pedido o 0 para el tamaño original
+     * @param reqHeight El alto pedido o 0 para el tamaño original
+     * @return El bitmap o null sino lo encuentra
+     */
+    public Bitmap get(String key, int reqWidth, int reqHeight) {
+        return get(key, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Obtiene un bitmap desde la cache de disco, submuestreado al tamaño pedido y decodificado
+     * sobre un bitmap del pool cuando es posible.
+     *
+     * @param key El identificador único para el bitmap
+     * @param reqWidth El ancho pedido o 0 para el tamaño original
+     * @param reqHeight El alto pedido o 0 para el tamaño original
+     * @param pool El pool de bitmaps reutilizables o null
+     * @return El bitmap o null sino lo encuentra
+     */
+    public Bitmap get(String key, int reqWidth, int reqHeight, BitmapPool pool) {
+        final ByteBuffer buffer = readSnapshot(key);
+        if (buffer == null) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Bitmap bitmap = mCodec.decode(buffer.array(), buffer.arrayOffset(), buffer.limit(),
+                reqWidth, reqHeight, pool);
+        mStats.recordTime(CacheStats.DECODE_TIME, start);
+        return bitmap;
+    }
+
+    /**
+     * Devuelve los bytes codificados de una entrada en una vista de solo lectura del buffer de
+     * lectura del hilo que llama. Ese buffer lo comparten todas las cachés y se reutiliza en la
+     * siguiente lectura del hilo en cualquiera de ellas, así que hay que terminar de usarlo antes
+     * o copiar los bytes.
+     *
+     * @param key El identificador único de la imagen
+     * @return Un buffer con los bytes entre su position y su limit, o null si no lo encuentra
+     */
+    public ByteBuffer getByteBuffer(String key) {
+        final ByteBuffer buffer = readSnapshot(key);
+        return buffer != null ? buffer.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Devuelve un stream con los bytes codificados de una entrada, leídos sobre el buffer del hilo
+     * que llama; como en {@link #getByteBuffer(String)}, hay que terminar de leerlo antes de la
+     * siguiente lectura del mismo hilo en cualquier caché.
+     *
+     * @param key El identificador único de la imagen
+     * @return El stream o null si no lo encuentra
+     */
+    public InputStream getInputStream(String key) {
+        final ByteBuffer buffer = readSnapshot(key);
+        if (buffer == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.limit());
+    }
+
+    /**
+     * Lee entera una entrada con su FileChannel en el buffer reutilizable del hilo. Una sola
+     * lectura sirve para las dos pasadas del decode, que con decodeFile abrían y leían el archivo
+     * dos veces.
+     */
+    private ByteBuffer readSnapshot(String key) {
+        final String file;
         synchronized (mLinkedHashMap) {
-            final String file = mLinkedHashMap.get(key);
-            if (file != null) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "Se tocó la caché de disco");
-                }
-                return BitmapFactory.decodeFile(file);
-            } else {
-                final String existingFile = createFilePath(mCacheDir, key);
-                if (new File(existingFile).exists()) {
-                    put(key, existingFile);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "Se tocó la caché de disco (archivo existente)");
-                    }
-                    return BitmapFactory.decodeFile(existingFile);
-                }
+            mPolicy.onAccess(key);
+            final Entry entry = mLinkedHashMap.get(key);
+            if (entry == null) {
+                mStats.record(CacheStats.DISK_MISS);
+                return null;
             }
+            journal(READ, key, null);
+            file = entry.file;
+        }
+        writeJournal();
+
+        logDebug("Se tocó la caché de disco");
+        final ByteBuffer buffer;
+        try {
+            buffer = Utils.readFully(file, sReadBuffer.get());
+        } catch (final IOException e) {
+            // La entrada se eliminó mientras tanto, se trata como un fallo de caché
+            mStats.record(CacheStats.DISK_MISS);
             return null;
         }
+        // Los buffers grandes no se retienen, serían memoria ocupada para siempre por el hilo
+        sReadBuffer.set(buffer.capacity() <= MAX_READ_BUFFER_SIZE ? buffer : null);
+        mStats.record(CacheStats.DISK_HIT);
+        mStats.record(CacheStats.DISK_BYTES_READ, buffer.limit());
+        return buffer;
     }
 
     /**
@@ -182,26 +960,129 @@ public class DiskLruCache {
      * @return true si lo encuentra, de lo contrario false
      */
     public boolean containsKey(String key) {
-        // Mira si la clave está en nuestro HashMap
-        if (mLinkedHashMap.containsKey(key)) {
-            return true;
+        // El journal ya restauró el índice completo, no hace falta buscar en el directorio
+        synchronized (mLinkedHashMap) {
+            return mLinkedHashMap.containsKey(key);
         }
+    }
 
-        // Comprueba si el fichero existe basado en la clave
-        final String existingFile = createFilePath(mCacheDir, key);
-        if (new File(existingFile).exists()) {
-            // Fichero encontrado, lo añade al HashMap para usos futuros
-            put(key, existingFile);
-            return true;
+    /**
+     * Quita una entrada de la caché, por ejemplo porque la imagen cambió.
+     *
+     * @return true si la entrada estaba en la caché
+     */
+    public boolean remove(String key) {
+        synchronized (mLinkedHashMap) {
+            final Entry entry = mLinkedHashMap.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            mPolicy.onRemove(key);
+            new File(entry.file).delete();
+            cacheSize = mLinkedHashMap.size();
+            cacheByteSize -= entry.length;
+            journal(REMOVE, key, null);
         }
-        return false;
+        writeJournal();
+        return true;
     }
 
     /**
-     * Elimina todas las entradas de la cache de disco desde esta instancia del directorio cache
+     * Devuelve la etiqueta guardada con la entrada o null si no tiene o no está.
+     */
+    public String getTag(String key) {
+        synchronized (mLinkedHashMap) {
+            final Entry entry = mLinkedHashMap.get(key);
+            return entry != null ? entry.tag : null;
+        }
+    }
+
+    /**
+     * Devuelve cuándo se escribió la entrada, en milisegundos desde la época, o 0 si no está o
+     * es de un journal anterior.
+     */
+    public long getTimestamp(String key) {
+        synchronized (mLinkedHashMap) {
+            final Entry entry = mLinkedHashMap.get(key);
+            return entry != null ? entry.timestamp : 0;
+        }
+    }
+
+    /**
+     * Devuelve una copia de las claves de la caché.
+     */
+    public List<String> keys() {
+        synchronized (mLinkedHashMap) {
+            return new ArrayList<String>(mLinkedHashMap.keySet());
+        }
+    }
+
+    /**
+     * Elimina todas las entradas de la cache de disco desde esta instancia del directorio cache.
+     * Con los bloqueos tomados solo se vacía el índice, se rehace el journal y se apartan los
+     * subdirectorios con un rename cada uno; los archivos se borran después en el hilo de recorte,
+     * así ninguna lectura ni escritura espera a que se borre toda la caché.
     */
     public void clearCache() {
-        DiskLruCache.clearCache(mCacheDir);
+        synchronized (mJournalLock) {
+            final List<String> writingKeys;
+            synchronized (mLinkedHashMap) {
+                discardShards(mCacheDir);
+                mLinkedHashMap.clear();
+                mPolicy.clear();
+                mTrimCandidates.clear();
+                cacheSize = 0;
+                cacheByteSize = 0;
+                // El journal nuevo sustituye a los registros pendientes
+                mJournalBuffer.setLength(0);
+                mJournalFlushNeeded = false;
+                mJournalRebuildNeeded = false;
+                mJournalPending = false;
+                mRedundantOpCount = 0;
+                writingKeys = new ArrayList<String>(mWritingKeys);
+            }
+            if (mJournalWriter == null) {
+                new File(mCacheDir, JOURNAL_FILE).delete();
+            } else {
+                try {
+                    rebuildJournal(Collections.<Entry>emptyList(), writingKeys);
+                } catch (final IOException e) {
+                    logError("Error en clearCache: " + e.getMessage());
+                }
+            }
+        }
+
+        final File cacheDir = mCacheDir;
+        sTrimExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Archivos de versiones anteriores, que estaban todos en el directorio raíz y
+                // ninguna entrada nueva puede volver a usar
+                deleteCacheFiles(cacheDir);
+            }
+        });
+        deleteDiscardedLater(cacheDir);
+    }
+
+    /**
+     * Mueve los subdirectorios de la caché a un directorio apartado junto a ella, que después
+     * borra {@link #deleteDiscardedLater(File)}. Una escritura en curso en uno de ellos no llega a
+     * confirmarse, porque su archivo temporal ya no está donde lo busca el rename. Si un
+     * subdirectorio no se puede mover se borran sus archivos en el momento.
+     */
+    private static void discardShards(File cacheDir) {
+        final File[] shards = cacheDir.listFiles(shardDirFilter);
+        if (shards == null || shards.length == 0) {
+            return;
+        }
+        final File trash = new File(cacheDir.getAbsoluteFile().getParentFile(),
+                cacheDir.getName() + DISCARDED_SUFFIX + System.currentTimeMillis());
+        trash.mkdir();
+        for (int i = 0; i < shards.length; i++) {
+            if (!shards[i].renameTo(new File(trash, shards[i].getName()))) {
+                deleteCacheFiles(shards[i]);
+            }
+        }
     }
 
     /**
@@ -223,7 +1104,77 @@ public class DiskLruCache {
      * @param cacheDir El directorio para eliminar los archivos de cache
      */
     private static void clearCache(File cacheDir) {
-        final File[] files = cacheDir.listFiles(cacheFileFilter);
+        final File[] shards = cacheDir.listFiles(shardDirFilter);
+        if (shards == null) {
+            return;
+        }
+        for (int i=0; i<shards.length; i++) {
+            deleteCacheFiles(shards[i]);
+        }
+        // Archivos de versiones anteriores, que estaban todos en el directorio raíz
+        deleteCacheFiles(cacheDir);
+        new File(cacheDir, JOURNAL_FILE).delete();
+    }
+
+    /**
+     * Vacía la caché de un directorio que nadie tiene abierto sin esperar a borrar sus archivos:
+     * el directorio se renombra, que es inmediato, y se borra después en el hilo de recorte junto
+     * con lo que quedara de otros apartados antes. Así se puede abrir una caché vacía en el mismo
+     * directorio en seguida.
+     *
+     * @param cacheDir El directorio de la caché
+     * @return true si se apartó o no existía, false si no se pudo renombrar
+     */
+    static boolean discardCacheDir(File cacheDir) {
+        final File parent = cacheDir.getAbsoluteFile().getParentFile();
+        final boolean discarded = !cacheDir.exists() || cacheDir.renameTo(new File(parent,
+                cacheDir.getName() + DISCARDED_SUFFIX + System.currentTimeMillis()));
+        deleteDiscardedLater(cacheDir);
+        return discarded;
+    }
+
+    /**
+     * Borra en el hilo de recorte los directorios apartados de la caché.
+     */
+    private static void deleteDiscardedLater(File cacheDir) {
+        final File parent = cacheDir.getAbsoluteFile().getParentFile();
+        final String prefix = cacheDir.getName() + DISCARDED_SUFFIX;
+        if (parent != null) {
+            sTrimExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final File[] dirs = parent.listFiles(new FilenameFilter() {
+                        @Override
+                        public boolean accept(File dir, String filename) {
+                            return filename.startsWith(prefix);
+                        }
+                    });
+                    if (dirs == null) {
+                        return;
+                    }
+                    for (int i = 0; i < dirs.length; i++) {
+                        deleteRecursively(dirs[i]);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteRecursively(children[i]);
+            }
+        }
+        file.delete();
+    }
+
+    private static void deleteCacheFiles(File dir) {
+        final File[] files = dir.listFiles(cacheFileFilter);
+        if (files == null) {
+            return;
+        }
         for (int i=0; i<files.length; i++) {
             files[i].delete();
         }
@@ -237,32 +1188,52 @@ public class DiskLruCache {
      * @return El directorio de la cache
      */
     public static File getDiskCacheDir(Context context, String uniqueName) {
-
-        // Comprueba si hay almacenamiento interno, de ser así, intenta usar la caché de directorio externa 
-        // de lo contario usa la caché de directorio interna
-        final String cachePath =
-                Environment.getExternalStorageState() == Environment.MEDIA_MOUNTED ||
-                        !Utils.isExternalStorageRemovable() ?
-                        Utils.getExternalCacheDir(context).getPath() :
-                        context.getCacheDir().getPath();
-
-        return new File(cachePath + File.separator + uniqueName);
+        return new File(DiskCachePlatform.getDefault().getCacheDir(context), uniqueName);
     }
 
 
+    /**
+     * Devuelve la ruta del archivo de una clave: el SHA-1 de la clave en hexadecimal, dentro del
+     * subdirectorio que indican sus dos primeros dígitos. Todos los nombres tienen la misma
+     * longitud y ningún directorio acumula más de 1/256 de las entradas.
+     *
+     * @param cacheDir El directorio de la caché
+     * @param key La clave
+     * @return La ruta absoluta del archivo
+     */
     public static String createFilePath(File cacheDir, String key) {
-        // Utiliza URLEncoder para asegurar que tenemos un nombre de archivo válido
-            try {
-				return cacheDir.getAbsolutePath() + File.separator +
-				        CACHE_FILENAME_PREFIX + URLEncoder.encode(key.replace("*", ""), "UTF-8") + ".jpg";
-			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
-			}
-			return null;
+        return createFilePath(cacheDir.getAbsolutePath(), key);
     }
 
+    /**
+     * Como {@link #createFilePath(File, String)} en el directorio de esta caché. Las entradas del
+     * índice guardan su ruta, así que solo se calcula una vez por clave.
+     */
     public String createFilePath(String key) {
-        return createFilePath(mCacheDir, key);
+        return createFilePath(mCacheDirPath, key);
+    }
+
+    private static String createFilePath(String cacheDirPath, String key) {
+        final String hash = hashKey(key);
+        return new StringBuilder(cacheDirPath.length() + hash.length() + 16)
+                .append(cacheDirPath).append(File.separatorChar)
+                .append(hash, 0, SHARD_NAME_LENGTH).append(File.separatorChar)
+                .append(CACHE_FILENAME_PREFIX).append(hash).toString();
+    }
+
+    private static String hashKey(String key) {
+        final byte[] hash;
+        try {
+            hash = sDigest.get().digest(key.getBytes("UTF-8"));
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
     }
 
     /**
@@ -277,24 +1248,166 @@ public class DiskLruCache {
     }
 
     /**
-     * Escribe un bitmap a un archivo. Call {@link DiskLruCache#setCompressParams(CompressFormat, int)}
+     * Establece la política de expulsión. La política nueva empieza con las entradas actuales en
+     * su orden de acceso.
+     *
+     * @param policy La política, que no se debe compartir con otra caché
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        synchronized (mLinkedHashMap) {
+            policy.clear();
+            for (Entry entry : mLinkedHashMap.values()) {
+                policy.onInsert(entry.key, entry.length);
+            }
+            mPolicy = policy;
+        }
+        scheduleTrim();
+    }
+
+    /**
+     * Establece el codec con el que se leen y escriben los bitmaps. Por defecto
+     * {@link BitmapCodec#DEFAULT}.
+     *
+     * @param codec
+     */
+    public void setCodec(BitmapCodec codec) {
+        mCodec = codec;
+    }
+
+    private static void logError(String msg) {
+        DiskCachePlatform.getDefault().logError(TAG, msg);
+    }
+
+    private static void logDebug(String msg) {
+        DiskCachePlatform.getDefault().logDebug(TAG, msg);
+    }
+
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    public long getMaxByteSize() {
+        return maxCacheByteSize;
+    }
+
+    /**
+     * Escribe un bitmap a un stream. Call {@link DiskLruCache#setCompressParams(CompressFormat, int)}
      * primero establece la compresión del bitmap de destino y formato
      *
      * @param bitmap
-     * @param file
+     * @param out
      * @return
      */
-    private boolean writeBitmapToFile(Bitmap bitmap, String file)
-            throws IOException, FileNotFoundException {
+    private boolean writeBitmapToStream(Bitmap bitmap, OutputStream out) {
+        final CompressFormat format =
+                mCompressFormat != null ? mCompressFormat : CompressFormat.JPEG;
+        return mCodec.encode(bitmap, format, mCompressQuality, out);
+    }
 
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file), Utils.IO_BUFFER_SIZE);
-            return bitmap.compress(mCompressFormat, mCompressQuality, out);
-        } finally {
-            if (out != null) {
-                out.close();
+    /**
+     * Escritura en curso de una entrada. Los datos van a un archivo temporal que se renombra al
+     * confirmar, así nadie lee nunca un archivo a medio escribir. Hay que llamar siempre a
+     * {@link #commit()} o a {@link #abort()}.
+     */
+    public final class Editor {
+        private final String mKey;
+        private final String mFile;
+        private final File mTmpFile;
+        private OutputStream mOut;
+        // Se escribió con copyFrom en lugar de con el stream
+        private boolean mCopied = false;
+        private String mTag;
+        private boolean mDone = false;
+
+        private Editor(String key, String file) {
+            mKey = key;
+            mFile = file;
+            mTmpFile = new File(file + TMP_SUFFIX);
+        }
+
+        /**
+         * Devuelve el stream donde escribir los bytes codificados de la entrada.
+         */
+        public OutputStream newOutputStream() throws FileNotFoundException {
+            if (mOut == null) {
+                createShardDir();
+                mOut = new BufferedOutputStream(new FileOutputStream(mTmpFile), Utils.IO_BUFFER_SIZE);
             }
+            return mOut;
+        }
+
+        /**
+         * Escribe la entrada como copia de un archivo, en lugar de usar el stream.
+         */
+        public void copyFrom(File source) throws IOException {
+            createShardDir();
+            Utils.copy(source, mTmpFile);
+            mCopied = true;
+        }
+
+        private void createShardDir() {
+            // El subdirectorio se crea con la primera entrada que cae en él
+            final File shard = mTmpFile.getParentFile();
+            if (!shard.isDirectory()) {
+                shard.mkdirs();
+            }
+        }
+
+        /**
+         * Guarda con la entrada una etiqueta que identifica la versión de la imagen, por ejemplo
+         * el ID y la versión de la fila de la foto en el proveedor.
+         */
+        public void setTag(String tag) {
+            mTag = tag;
+        }
+
+        /**
+         * Cierra el stream y hace visible la entrada.
+         */
+        public void commit() {
+            complete(true);
+        }
+
+        /**
+         * Descarta lo escrito.
+         */
+        public void abort() {
+            complete(false);
+        }
+
+        private void complete(boolean success) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            if (mOut == null) {
+                success &= mCopied;
+            } else {
+                try {
+                    mOut.close();
+                } catch (final IOException e) {
+                    logError("Error cerrando la entrada: " + e.getMessage());
+                    success = false;
+                }
+            }
+            DiskLruCache.this.commit(mKey, mFile, mTmpFile, mTag, success);
+        }
+    }
+
+    /**
+     * Una entrada del índice: la clave, su archivo y el tamaño, la fecha de escritura y la
+     * etiqueta registrados en el journal.
+     */
+    private static final class Entry {
+        private final String key;
+        private final String file;
+        private long length;
+        private long timestamp;
+        private String tag;
+
+        private Entry(String key, String file) {
+            this.key = key;
+            this.file = file;
         }
     }
 }
@@ -0,0 +1,195 @@
+package android.hispano.fotocach;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.hispano.fotocach.utils.Utils;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Cola de escrituras diferidas a la caché de disco. El hilo que carga la imagen solo encola el
+ * bitmap, los bytes o el archivo y sigue; la compresión y la E/S se hacen después en un hilo
+ * propio de baja prioridad. Si una clave ya está en la cola no se vuelve a encolar.
+ *
+ * La cola está limitada en bytes: si se llena se descartan las escrituras más antiguas, que solo
+ * significa que esa imagen no llegará a disco. {@link #clear()} descarta todas las pendientes
+ * cuando falta memoria.
+ */
+class DiskWriteQueue {
+    private static final String TAG = "DiskWriteQueue";
+
+    // Un solo hilo de escritura para todas las colas
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "FotoCach-write");
+                }
+            });
+
+    private final DiskLruCache mDiskCache;
+    private final int mMaxPendingBytes;
+    // Escrituras pendientes en orden de llegada: Bitmap, byte[] o File
+    private final LinkedHashMap<String, Pending> mPending = new LinkedHashMap<String, Pending>();
+    private int mPendingBytes = 0;
+    // La escritura en curso, que ya salió de mPending pero todavía no está en disco
+    private String mWritingKey;
+    private Object mWritingValue;
+    private boolean mDrainScheduled = false;
+
+    /**
+     * @param diskCache La caché de disco en la que se escribe
+     * @param maxPendingBytes El tamaño máximo de lo pendiente de escribir
+     */
+    DiskWriteQueue(DiskLruCache diskCache, int maxPendingBytes) {
+        mDiskCache = diskCache;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Encola la escritura de un bitmap, de los bytes codificados de una imagen o de una copia de
+     * un archivo con la imagen codificada.
+     */
+    void enqueue(String key, Object value) {
+        enqueue(key, value, null);
+    }
+
+    /**
+     * Como {@link #enqueue(String, Object)} guardando una etiqueta con la entrada. Los bitmaps se
+     * escriben sin etiqueta.
+     *
+     * @param tag La etiqueta de la versión de la imagen o null
+     */
+    synchronized void enqueue(String key, Object value, String tag) {
+        if (mPending.containsKey(key) || key.equals(mWritingKey)) {
+            return;
+        }
+        final Pending pending = new Pending(value, tag);
+        mPending.put(key, pending);
+        mPendingBytes += pending.size;
+
+        // Se descartan las más antiguas, pero nunca la que se acaba de encolar
+        final Iterator<Map.Entry<String, Pending>> it = mPending.entrySet().iterator();
+        while (mPendingBytes > mMaxPendingBytes && mPending.size() > 1) {
+            final Map.Entry<String, Pending> eldest = it.next();
+            mPendingBytes -= eldest.getValue().size;
+            it.remove();
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "enqueue - descartada la escritura de " + eldest.getKey());
+            }
+        }
+
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Devuelve lo pendiente de escribir para la clave, o null si no hay nada.
+     */
+    synchronized Object get(String key) {
+        if (key.equals(mWritingKey)) {
+            return mWritingValue;
+        }
+        final Pending pending = mPending.get(key);
+        return pending != null ? pending.value : null;
+    }
+
+    /**
+     * Descarta todas las escrituras pendientes. La que está en curso termina.
+     */
+    synchronized void clear() {
+        mPending.clear();
+        mPendingBytes = 0;
+    }
+
+    /**
+     * Ejecuta la tarea en el hilo de escritura cuando termina lo que ya está encolado.
+     */
+    void runAfterPending(Runnable task) {
+        sExecutor.execute(task);
+    }
+
+    private void drain() {
+        while (true) {
+            final String key;
+            final Object value;
+            final String tag;
+            synchronized (this) {
+                final Iterator<Map.Entry<String, Pending>> it = mPending.entrySet().iterator();
+                if (!it.hasNext()) {
+                    mDrainScheduled = false;
+                    mWritingKey = null;
+                    mWritingValue = null;
+                    return;
+                }
+                final Map.Entry<String, Pending> entry = it.next();
+                it.remove();
+                key = entry.getKey();
+                value = entry.getValue().value;
+                tag = entry.getValue().tag;
+                mPendingBytes -= entry.getValue().size;
+                mWritingKey = key;
+                mWritingValue = value;
+            }
+            write(key, value, tag);
+        }
+    }
+
+    private void write(String key, Object value, String tag) {
+        if (value instanceof Bitmap) {
+            mDiskCache.put(key, (Bitmap) value);
+        } else if (value instanceof byte[]) {
+            mDiskCache.put(key, (byte[]) value, tag);
+        } else if (value instanceof File) {
+            mDiskCache.put(key, (File) value, tag);
+        }
+    }
+
+    /**
+     * Una escritura pendiente con el tamaño que se le contó al encolarla, que es el que se
+     * descuenta al salir aunque el archivo cambie mientras tanto.
+     */
+    private static final class Pending {
+        private final Object value;
+        private final String tag;
+        private final int size;
+
+        private Pending(Object value, String tag) {
+            this.value = value;
+            this.tag = tag;
+            this.size = sizeOf(value);
+        }
+    }
+
+    private static int sizeOf(Object value) {
+        if (value instanceof Bitmap) {
+            return Utils.getBitmapSize((Bitmap) value);
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof File) {
+            // La copia también ocupa el hilo de escritura y el disco en proporción a su tamaño
+            return (int) Math.min(((File) value).length(), Integer.MAX_VALUE);
+        }
+        return 0;
+    }
+}
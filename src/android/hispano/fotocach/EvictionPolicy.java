@@ -0,0 +1,256 @@
+package android.hispano.fotocach;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decide qué entrada sale de una caché cuando supera su tamaño. La caché notifica cada acceso,
+ * inserción y eliminación y pide una víctima cada vez que tiene que expulsar, indicando la clave
+ * recién insertada que provocó la expulsión si la hay; la política solo lleva la cuenta de las
+ * claves y sus tamaños, los valores siguen en la caché.
+ *
+ * No es thread-safe, la caché que la usa la llama siempre con su propio bloqueo tomado.
+ */
+public abstract class EvictionPolicy {
+    // Tipos de política para ImageCacheParams
+    public static final int LRU = 0;
+    public static final int TINY_LFU = 1;
+    public static final int SIZE_WEIGHTED = 2;
+
+    // Claves en orden de acceso, la primera es la menos usada recientemente
+    protected final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(32, 0.75f, true);
+
+    /**
+     * Crea una política del tipo indicado.
+     *
+     * @param type {@link #LRU}, {@link #TINY_LFU} o {@link #SIZE_WEIGHTED}
+     * @param expectedEntries El número aproximado de entradas que caben en la caché
+     */
+    public static EvictionPolicy create(int type, int expectedEntries) {
+        switch (type) {
+            case TINY_LFU:
+                return new TinyLfu(expectedEntries);
+            case SIZE_WEIGHTED:
+                return new SizeWeighted();
+            default:
+                return new Lru();
+        }
+    }
+
+    /**
+     * Llamado en cada búsqueda de la clave, tanto si está en la caché como si no.
+     */
+    public void onAccess(String key) {
+        mEntries.get(key);
+    }
+
+    /**
+     * Llamado cuando la clave entra en la caché.
+     *
+     * @param size El tamaño de la entrada en las unidades de la caché
+     */
+    public void onInsert(String key, long size) {
+        mEntries.put(key, size);
+    }
+
+    /**
+     * Llamado cuando la clave sale de la caché por cualquier motivo.
+     */
+    public void onRemove(String key) {
+        mEntries.remove(key);
+    }
+
+    /**
+     * Devuelve la clave que debe salir a continuación o null si no hay ninguna.
+     *
+     * @param candidate La clave recién insertada que todavía tiene que ganarse su sitio, o null
+     *            si la expulsión no viene de una inserción. La caché la pasa una sola vez por
+     *            inserción.
+     */
+    public String selectVictim(String candidate) {
+        final Iterator<String> it = mEntries.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Devuelve las claves que más conviene conservar, de la más a la menos valiosa. Por defecto
+     * las usadas más recientemente.
+     *
+     * @param max El número máximo de claves
+     */
+    public List<String> hotKeys(int max) {
+        final List<String> keys = new ArrayList<String>(mEntries.keySet());
+        Collections.reverse(keys);
+        return keys.size() > max ? new ArrayList<String>(keys.subList(0, max)) : keys;
+    }
+
+    /**
+     * Expulsa siempre la entrada menos usada recientemente.
+     */
+    public static class Lru extends EvictionPolicy {
+    }
+
+    /**
+     * LRU con admisión TinyLFU: la frecuencia de las claves se estima con un count-min sketch y
+     * una entrada recién insertada solo desplaza a la víctima LRU si se ha pedido más veces que
+     * ella. Así una pasada por toda la lista de contactos no expulsa a los favoritos.
+     */
+    public static class TinyLfu extends EvictionPolicy {
+        private final FrequencySketch mSketch;
+
+        public TinyLfu(int expectedEntries) {
+            mSketch = new FrequencySketch(expectedEntries);
+        }
+
+        @Override
+        public void onAccess(String key) {
+            mSketch.increment(key);
+            super.onAccess(key);
+        }
+
+        @Override
+        public String selectVictim(String candidate) {
+            final String victim = super.selectVictim(candidate);
+            // El candidato puede haber salido ya, por ejemplo con un remove antes del recorte
+            if (candidate != null && victim != null && !candidate.equals(victim)
+                    && mEntries.containsKey(candidate)
+                    && mSketch.frequency(candidate) <= mSketch.frequency(victim)) {
+                return candidate;
+            }
+            return victim;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            mSketch.clear();
+        }
+
+        /**
+         * Las claves más pedidas según el sketch; a igual frecuencia, las más recientes.
+         */
+        @Override
+        public List<String> hotKeys(int max) {
+            final List<String> keys = super.hotKeys(Integer.MAX_VALUE);
+            // La ordenación es estable, así se mantiene el orden por recencia de los empates
+            Collections.sort(keys, new Comparator<String>() {
+                @Override
+                public int compare(String lhs, String rhs) {
+                    return mSketch.frequency(rhs) - mSketch.frequency(lhs);
+                }
+            });
+            return keys.size() > max ? new ArrayList<String>(keys.subList(0, max)) : keys;
+        }
+    }
+
+    /**
+     * Entre las entradas menos usadas recientemente expulsa la más grande, así una foto de alta
+     * resolución libera el sitio de varias miniaturas.
+     */
+    public static class SizeWeighted extends EvictionPolicy {
+        // Número de entradas menos recientes entre las que se elige
+        private static final int SAMPLE_SIZE = 8;
+
+        @Override
+        public String selectVictim(String candidate) {
+            String victim = null;
+            long victimSize = -1;
+            int count = 0;
+            final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+            while (it.hasNext() && count++ < SAMPLE_SIZE) {
+                final Map.Entry<String, Long> entry = it.next();
+                if (entry.getValue() > victimSize) {
+                    victim = entry.getKey();
+                    victimSize = entry.getValue();
+                }
+            }
+            return victim;
+        }
+    }
+
+    /**
+     * Count-min sketch de 4 filas con contadores saturados en 15. Cuando el número de incrementos
+     * llega a diez veces el ancho, todos los contadores se dividen entre dos para que las
+     * frecuencias antiguas pierdan peso.
+     */
+    static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb4b82e39, 0x85ebca6b, 0xc2b2ae35};
+
+        private final int[] mTable;
+        private final int mMask;
+        private final int mSampleSize;
+        private int mAdditions = 0;
+
+        FrequencySketch(int expectedEntries) {
+            int width = 64;
+            while (width < expectedEntries * 2 && width < (1 << 20)) {
+                width <<= 1;
+            }
+            mTable = new int[DEPTH * width];
+            mMask = width - 1;
+            mSampleSize = 10 * width;
+        }
+
+        void increment(String key) {
+            final int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                final int index = indexOf(hash, i);
+                if (mTable[index] < MAX_COUNT) {
+                    mTable[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= mSampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            final int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, mTable[indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        void clear() {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] = 0;
+            }
+            mAdditions = 0;
+        }
+
+        private void reset() {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] >>>= 1;
+            }
+            mAdditions /= 2;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 17;
+            return row * (mMask + 1) + (h & mMask);
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45d9f3b;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -1,15 +1,35 @@
 package android.hispano.fotocach;
 
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.hispano.fotocach.utils.Utils;
+import android.os.Build;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
-import android.support.v4.util.LruCache;
 import android.util.Log;
 
 public class ImageCache {
@@ -18,9 +38,27 @@ public class ImageCache {
     // Tamaño de la caché de memoria por defecto
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 1024 * 5; // 5MB
 
+    // Tamaño del pool de bitmaps reutilizables por defecto
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 1024 * 2; // 2MB
+
+    // Tamaño del segundo nivel de la caché de memoria por defecto
+    private static final int DEFAULT_SOFT_CACHE_SIZE = 1024 * 1024 * 5; // 5MB
+
+    // Tamaño de la caché de bytes codificados por defecto
+    private static final int DEFAULT_ENCODED_CACHE_SIZE = 1024 * 1024 * 2; // 2MB
+
+    // Tamaño típico de una foto de contacto codificada, para dimensionar las políticas
+    private static final int TYPICAL_ENCODED_SIZE = 8 * 1024;
+
     // Tamaño de la caché de disco por defecto
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
+    // Tamaño máximo de las escrituras a disco pendientes por defecto
+    private static final int DEFAULT_DISK_WRITE_QUEUE_SIZE = 1024 * 1024 * 2; // 2MB
+
+    // Número máximo de entradas de la caché de disco por defecto
+    private static final int DEFAULT_DISK_CACHE_MAX_ITEMS = DiskLruCache.DEFAULT_MAX_ITEM_COUNT;
+
     // Ajustes de Compresión cuando está escribiendo imágenes a la caché de disco
     static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
     static final int DEFAULT_COMPRESS_QUALITY = 70;
@@ -30,8 +68,50 @@ public class ImageCache {
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_CLEAR_DISK_CACHE_ON_START = false;
 
-    private DiskLruCache mDiskCache;
-    private LruCache<String, Bitmap> mMemoryCache;
+    // Número de claves más usadas que se guardan para precargarlas en el siguiente arranque
+    private static final int DEFAULT_WARM_UP_SIZE = 48;
+
+    // Archivo con esas claves, en el directorio de la caché de disco
+    static final String HOT_KEYS_FILE = "hotkeys";
+
+    // Políticas de expulsión por defecto
+    private static final int DEFAULT_MEMORY_EVICTION_POLICY = EvictionPolicy.LRU;
+    private static final int DEFAULT_DISK_EVICTION_POLICY = EvictionPolicy.LRU;
+    private static final int DEFAULT_ENCODED_EVICTION_POLICY = EvictionPolicy.LRU;
+
+    // Tamaño típico de un bitmap en memoria, para dimensionar las políticas
+    private static final int TYPICAL_BITMAP_SIZE = 96 * 96 * 4;
+
+    // Niveles de onTrimMemory de Jelly Bean, que no están en el SDK con el que se compila
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+
+    // Tiempo sin avisos de memoria tras el que la caché de memoria recupera su tamaño
+    private static final long REGROW_DELAY = 30 * 1000;
+
+    // Separa la clave del tamaño en las claves de la caché de memoria
+    static final char MEMORY_KEY_SEPARATOR = '@';
+
+    // La caché de disco se abre en background, hasta entonces solo se sirve desde memoria
+    private volatile DiskLruCache mDiskCache;
+    private final CountDownLatch mDiskCacheReady = new CountDownLatch(1);
+    private boolean mClosed = false;
+    private MemoryCache<Bitmap> mMemoryCache;
+    private SoftBitmapCache mSoftCache;
+    private MemoryCache<byte[]> mEncodedCache;
+    private BitmapPool mBitmapPool;
+    private volatile DiskWriteQueue mDiskWriteQueue;
+    // Tamaño de la caché de memoria cuando no hay presión de memoria
+    private int mMemCacheBudget;
+    private int mEncodedCacheBudget;
+    private int mWarmUpSize;
+    // Momento del último recorte por presión de memoria, 0 si la caché tiene su tamaño completo
+    private volatile long mTrimmedAt = 0;
+    private final CacheStats mStats = CacheStats.getDefault();
+    // Quién muestra o retiene cada bitmap: un ImageView o el task que lo lleva a pantalla. Las
+    // claves son débiles, un ImageView que desaparece deja de contar sin tener que avisar
+    private final WeakHashMap<Object, Displayed> mDisplayed = new WeakHashMap<Object, Displayed>();
 
     /**
      * Crea un nuevo objeto ImageCache usando los parámetros especificados.
@@ -94,26 +174,35 @@ public class ImageCache {
     }
 
     /**
-     * Inicializa la caché, suministrando todos los parámetros.
+     * Inicializa la caché, suministrando todos los parámetros. Las cachés de memoria quedan listas
+     * al volver; la de disco se abre en un hilo de background, porque crear el directorio, leer el
+     * journal o vaciarla puede tardar, y hasta entonces los accesos a disco esperan en los hilos
+     * de carga y se saltan en el de UI.
      *
      * @param context El contexto a utilizar
      * @param cacheParams Los parámetros de cache para inicializar la caché
      */
     @SuppressLint("NewApi") private void init(Context context, ImageCacheParams cacheParams) {
-        final File diskCacheDir = DiskLruCache.getDiskCacheDir(context, cacheParams.uniqueName);
-
-        // Establece una caché de disco
-        if (cacheParams.diskCacheEnabled) {
-            mDiskCache = DiskLruCache.openCache(context, diskCacheDir, cacheParams.diskCacheSize);
-            mDiskCache.setCompressParams(cacheParams.compressFormat, cacheParams.compressQuality);
-            if (cacheParams.clearDiskCacheOnStart) {
-                mDiskCache.clearCache();
-            }
+        // Establece el pool de bitmaps reutilizables, solo tiene sentido desde Honeycomb
+        if (cacheParams.bitmapPoolSize > 0 && BitmapPool.isSupported()) {
+            mBitmapPool = new BitmapPool(cacheParams.bitmapPoolSize);
         }
 
         // Establece una caché de memoria
         if (cacheParams.memoryCacheEnabled) {
-            mMemoryCache = new LruCache<String, Bitmap>(cacheParams.memCacheSize) {
+            mMemCacheBudget = cacheParams.memCacheSize;
+            // Segundo nivel con los bitmaps que expulsa la caché de memoria
+            if (cacheParams.softCacheSize > 0) {
+                mSoftCache = new SoftBitmapCache(cacheParams.softCacheSize) {
+                    @Override
+                    protected void entryExpelled(String key, Bitmap bitmap) {
+                        recycleToPool(key, bitmap);
+                    }
+                };
+            }
+            final EvictionPolicy policy = EvictionPolicy.create(cacheParams.memoryEvictionPolicy,
+                    cacheParams.memCacheSize / TYPICAL_BITMAP_SIZE);
+            mMemoryCache = new MemoryCache<Bitmap>(cacheParams.memCacheSize, policy) {
                 /**
                  * Mide el tamaño del elemento en bytes en lugar de unidades que es más práctico una caché de bitmaps
                  */
@@ -121,26 +210,365 @@ public class ImageCache {
                 protected int sizeOf(String key, Bitmap bitmap) {
                     return Utils.getBitmapSize(bitmap);
                 }
+
+                /**
+                 * Los bitmaps expulsados pasan al segundo nivel y, cuando salen de él, al pool
+                 * para que otro decode reutilice su memoria
+                 */
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                        Bitmap newValue) {
+                    if (evicted) {
+                        mStats.record(CacheStats.MEMORY_EVICTION);
+                    }
+                    if (evicted && mSoftCache != null) {
+                        mSoftCache.put(key, oldValue);
+                    } else if (oldValue != newValue) {
+                        recycleToPool(key, oldValue);
+                    }
+                }
+            };
+        }
+
+        // Establece la caché de bytes codificados, con las mismas claves que la de disco
+        if (cacheParams.diskCacheEnabled && cacheParams.encodedCacheSize > 0) {
+            mEncodedCacheBudget = cacheParams.encodedCacheSize;
+            final EvictionPolicy policy = EvictionPolicy.create(cacheParams.encodedEvictionPolicy,
+                    cacheParams.encodedCacheSize / TYPICAL_ENCODED_SIZE);
+            mEncodedCache = new MemoryCache<byte[]>(cacheParams.encodedCacheSize, policy) {
+                @Override
+                protected int sizeOf(String key, byte[] bytes) {
+                    return bytes.length;
+                }
             };
         }
+
+        // Desde Ice Cream Sandwich el sistema avisa solo de la presión de memoria
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            final Context appContext = context.getApplicationContext();
+            appContext.registerComponentCallbacks(new TrimMemoryCallbacks(appContext, this));
+        }
+
+        mWarmUpSize = cacheParams.warmUpSize;
+        if (cacheParams.diskCacheEnabled) {
+            openDiskCacheAsync(context.getApplicationContext(), cacheParams);
+        } else {
+            mDiskCacheReady.countDown();
+        }
+    }
+
+    private void openDiskCacheAsync(final Context context, final ImageCacheParams cacheParams) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    openDiskCache(context, cacheParams);
+                } finally {
+                    mDiskCacheReady.countDown();
+                }
+
+                // Precarga en la caché de memoria los avatares más usados en la sesión anterior
+                final DiskLruCache diskCache = mDiskCache;
+                if (mWarmUpSize > 0 && mMemoryCache != null && diskCache != null) {
+                    warmUp(diskCache, LoaderExecutor.getDefault());
+                }
+            }
+        }, "FotoCach-init").start();
+    }
+
+    /**
+     * Establece la caché de disco, compartida con quien ya use el mismo directorio. Si hay que
+     * vaciarla al arrancar y nadie la tiene abierta, el directorio se aparta y se borra después.
+     */
+    private void openDiskCache(Context context, ImageCacheParams cacheParams) {
+        final File diskCacheDir = DiskLruCache.getDiskCacheDir(context, cacheParams.uniqueName);
+        final DiskLruCache diskCache = DiskCacheRegistry.acquire(diskCacheDir,
+                cacheParams.diskCacheSize, cacheParams.diskCacheMaxItems,
+                cacheParams.clearDiskCacheOnStart);
+        if (diskCache == null) {
+            return;
+        }
+        diskCache.setCompressParams(cacheParams.compressFormat, cacheParams.compressQuality);
+        if (cacheParams.diskEvictionPolicy != EvictionPolicy.LRU) {
+            diskCache.setEvictionPolicy(EvictionPolicy.create(cacheParams.diskEvictionPolicy,
+                    cacheParams.diskCacheMaxItems));
+        }
+        synchronized (this) {
+            if (mClosed) {
+                // Se cerró mientras se abría
+                DiskCacheRegistry.release(diskCache);
+                return;
+            }
+            // Las escrituras a disco se hacen en diferido, fuera del hilo que carga la imagen
+            if (cacheParams.diskWriteQueueSize > 0) {
+                mDiskWriteQueue = new DiskWriteQueue(diskCache, cacheParams.diskWriteQueueSize);
+            }
+            mDiskCache = diskCache;
+        }
+    }
+
+    /**
+     * Devuelve la caché de disco, esperando a que termine de abrirse salvo en el hilo de UI, donde
+     * devuelve null mientras tanto.
+     */
+    private DiskLruCache waitForDiskCache() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            try {
+                mDiskCacheReady.await();
+            } catch (final InterruptedException e) {
+                // La carga se canceló, se trata como un fallo de disco
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mDiskCache;
     }
 
     public void addBitmapToCache(String data, Bitmap bitmap) {
+        addBitmapToCache(data, 0, 0, bitmap);
+    }
+
+    /**
+     * Añade un bitmap decodificado a un tamaño concreto. En la caché de memoria se guarda con la
+     * clave más el tamaño; en la de disco solo si está a tamaño original, para no servir después
+     * una versión reducida a quien pida una mayor. El original de una carga con tamaño se escribe
+     * antes con {@link #addBitmapToDiskCache(String, Bitmap)} o con los bytes codificados.
+     *
+     * @param data Identificador único del item
+     * @param reqWidth El ancho pedido o 0 si es el tamaño original
+     * @param reqHeight El alto pedido o 0 si es el tamaño original
+     * @param bitmap El bitmap a añadir
+     */
+    public void addBitmapToCache(String data, int reqWidth, int reqHeight, Bitmap bitmap) {
         if (data == null || bitmap == null) {
             return;
         }
+        regrowIfRelieved();
 
         // Añade a la caché de memoria
-        if (mMemoryCache != null && mMemoryCache.get(data) == null) {
-            mMemoryCache.put(data, bitmap);
+        final String memoryKey = getMemoryCacheKey(data, reqWidth, reqHeight);
+        if (mMemoryCache != null && mMemoryCache.peek(memoryKey) == null) {
+            mMemoryCache.put(memoryKey, bitmap);
         }
 
         // Añade a la caché de disco
-        if (mDiskCache != null && !mDiskCache.containsKey(data)) {
-            mDiskCache.put(data, bitmap);
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            addBitmapToDiskCache(data, bitmap);
+        }
+    }
+
+    /**
+     * Añade a la caché de disco, y a ninguna de memoria, un bitmap a tamaño original.
+     *
+     * @param data Identificador único del item
+     * @param bitmap El bitmap a tamaño original
+     */
+    public void addBitmapToDiskCache(String data, Bitmap bitmap) {
+        if (data == null || bitmap == null) {
+            return;
+        }
+        final DiskLruCache diskCache = waitForDiskCache();
+        if (diskCache != null && !diskCache.containsKey(data)) {
+            writeToDisk(data, bitmap, null);
+        }
+    }
+
+    /**
+     * Escribe en la caché de disco a través de la cola de escrituras diferidas si está habilitada.
+     *
+     * @param value Un Bitmap, los bytes codificados o un File con la imagen codificada
+     * @param tag La etiqueta de la versión de la imagen o null
+     */
+    private void writeToDisk(String data, Object value, String tag) {
+        // Los campos se quedan a null al cerrar, se leen una sola vez
+        final DiskWriteQueue queue = mDiskWriteQueue;
+        final DiskLruCache diskCache = mDiskCache;
+        if (queue != null) {
+            queue.enqueue(data, value, tag);
+        } else if (diskCache == null) {
+            return;
+        } else if (value instanceof Bitmap) {
+            diskCache.put(data, (Bitmap) value);
+        } else if (value instanceof byte[]) {
+            diskCache.put(data, (byte[]) value, tag);
+        } else {
+            diskCache.put(data, (File) value, tag);
+        }
+    }
+
+    /**
+     * Pasa al pool un bitmap que ya no está en ninguna caché de memoria, salvo si alguien lo
+     * muestra todavía o está pendiente de escribirse a disco.
+     */
+    private void recycleToPool(String key, Bitmap bitmap) {
+        if (mBitmapPool == null) {
+            return;
+        }
+        synchronized (mDisplayed) {
+            if (!isDisplayed(bitmap) && !isPendingDiskWrite(key, bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Anota que el holder, normalmente un ImageView, muestra ahora el bitmap del item. Un bitmap
+     * mostrado no pasa al pool aunque salga de la caché de memoria, su memoria se reutilizaría
+     * mientras está en pantalla. El que el holder mostraba antes vuelve al pool si ya no lo
+     * muestra nadie ni está en la caché de memoria.
+     *
+     * ImageWorker lo llama solo; quien ponga en sus vistas bitmaps de
+     * {@link #getBitmapFromMemCache(String, int, int)} debería llamarlo también.
+     *
+     * @param holder El ImageView u objeto que retiene el bitmap
+     * @param data Identificador único del item
+     * @param reqWidth El ancho pedido o 0 si es el tamaño original
+     * @param reqHeight El alto pedido o 0 si es el tamaño original
+     * @param bitmap El bitmap mostrado o null si ya no muestra ninguno
+     */
+    public void setDisplayed(Object holder, String data, int reqWidth, int reqHeight,
+            Bitmap bitmap) {
+        if (mBitmapPool == null || holder == null) {
+            return;
+        }
+        synchronized (mDisplayed) {
+            final Displayed previous = bitmap != null
+                    ? mDisplayed.put(holder, new Displayed(data, reqWidth, reqHeight, bitmap))
+                    : mDisplayed.remove(holder);
+            if (previous != null && previous.bitmap != bitmap) {
+                recycleBitmap(previous.data, previous.reqWidth, previous.reqHeight,
+                        previous.bitmap);
+            }
         }
     }
 
+    /**
+     * Anota que el holder ya no muestra ningún bitmap de esta caché, por ejemplo porque ahora
+     * muestra el placeholder.
+     *
+     * @see #setDisplayed(Object, String, int, int, Bitmap)
+     */
+    public void clearDisplayed(Object holder) {
+        setDisplayed(holder, null, 0, 0, null);
+    }
+
+    /**
+     * Como {@link #getBitmapFromMemCache(String, int, int)} pero anotando el bitmap como mostrado
+     * por el holder en el mismo paso, para que no pueda pasar al pool entre que se saca de la
+     * caché y se muestra.
+     */
+    public Bitmap getBitmapFromMemCache(String data, int reqWidth, int reqHeight, Object holder) {
+        synchronized (mDisplayed) {
+            final Bitmap bitmap = getBitmapFromMemCache(data, reqWidth, reqHeight);
+            if (bitmap != null) {
+                setDisplayed(holder, data, reqWidth, reqHeight, bitmap);
+            }
+            return bitmap;
+        }
+    }
+
+    private boolean isDisplayed(Bitmap bitmap) {
+        for (Displayed displayed : mDisplayed.values()) {
+            if (displayed.bitmap == bitmap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lo que muestra un holder, con el item y el tamaño para saber si sigue en la caché.
+     */
+    private static final class Displayed {
+        private final String data;
+        private final int reqWidth;
+        private final int reqHeight;
+        private final Bitmap bitmap;
+
+        private Displayed(String data, int reqWidth, int reqHeight, Bitmap bitmap) {
+            this.data = data;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private boolean isPendingDiskWrite(String data, Bitmap bitmap) {
+        final DiskWriteQueue queue = mDiskWriteQueue;
+        return queue != null && queue.get(data) == bitmap;
+    }
+
+    /**
+     * Descarta las escrituras a disco pendientes y libera la memoria que retienen. Para llamarlo
+     * cuando el sistema anda corto de memoria.
+     */
+    public void dropPendingDiskWrites() {
+        final DiskWriteQueue queue = mDiskWriteQueue;
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Añade a la caché de disco una imagen ya codificada, sin decodificarla ni volver a
+     * comprimirla.
+     *
+     * @param data Identificador único del item
+     * @param bytes Los bytes codificados de la imagen
+     */
+    public void addBytesToDiskCache(String data, byte[] bytes) {
+        addBytesToDiskCache(data, bytes, null);
+    }
+
+    /**
+     * Como {@link #addBytesToDiskCache(String, byte[])} guardando en la caché de disco una
+     * etiqueta con la versión de la imagen, que después devuelve {@link #getDiskCacheTag(String)}.
+     *
+     * @param tag La etiqueta de la versión de la imagen o null
+     */
+    public void addBytesToDiskCache(String data, byte[] bytes, String tag) {
+        if (data == null || bytes == null) {
+            return;
+        }
+        final DiskLruCache diskCache = waitForDiskCache();
+        if (diskCache == null || diskCache.containsKey(data)) {
+            return;
+        }
+        if (mEncodedCache != null) {
+            mEncodedCache.put(data, bytes);
+        }
+        writeToDisk(data, bytes, tag);
+    }
+
+    /**
+     * Añade a la caché de disco una imagen ya codificada copiando sus bytes desde un archivo, sin
+     * decodificarla ni volver a comprimirla.
+     *
+     * @param data Identificador único del item
+     * @param file El archivo con la imagen codificada
+     */
+    public void addFileToDiskCache(String data, File file) {
+        addFileToDiskCache(data, file, null);
+    }
+
+    /**
+     * Como {@link #addFileToDiskCache(String, File)} guardando en la caché de disco una etiqueta
+     * con la versión de la imagen.
+     *
+     * @param tag La etiqueta de la versión de la imagen o null
+     */
+    public void addFileToDiskCache(String data, File file, String tag) {
+        if (data == null) {
+            return;
+        }
+        final DiskLruCache diskCache = waitForDiskCache();
+        if (diskCache == null || diskCache.containsKey(data)
+                || file.getPath().equals(diskCache.createFilePath(data))) {
+            return;
+        }
+        writeToDisk(data, file, tag);
+    }
+
     /**
      * Obtiene el bitmap desde la caché de memoria.
      *
@@ -148,14 +576,42 @@ public class ImageCache {
      * @return El bitmap si lo encuentra en la caché, de lo contrario null
      */
     public Bitmap getBitmapFromMemCache(String data) {
+        return getBitmapFromMemCache(data, 0, 0);
+    }
+
+    /**
+     * Obtiene el bitmap decodificado a un tamaño concreto desde la caché de memoria.
+     *
+     * @param data Identificador único para el cual se va a obtener el item.
+     * @param reqWidth El ancho pedido o 0 para el tamaño original
+     * @param reqHeight El alto pedido o 0 para el tamaño original
+     * @return El bitmap si lo encuentra en la caché, de lo contrario null
+     */
+    public Bitmap getBitmapFromMemCache(String data, int reqWidth, int reqHeight) {
+        // Una app que vuelve de background lee antes de añadir nada, no puede esperar a un put
+        regrowIfRelieved();
         if (mMemoryCache != null) {
-            final Bitmap memBitmap = mMemoryCache.get(data);
+            final String memoryKey = getMemoryCacheKey(data, reqWidth, reqHeight);
+            final Bitmap memBitmap = mMemoryCache.get(memoryKey);
             if (memBitmap != null) {
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Memory cache hit");
                 }
+                mStats.record(CacheStats.MEMORY_HIT);
                 return memBitmap;
             }
+            mStats.record(CacheStats.MEMORY_MISS);
+
+            // Un bitmap recién expulsado vuelve al primer nivel
+            if (mSoftCache != null) {
+                final Bitmap softBitmap = mSoftCache.remove(memoryKey);
+                if (softBitmap != null) {
+                    mStats.record(CacheStats.SOFT_HIT);
+                    mMemoryCache.put(memoryKey, softBitmap);
+                    return softBitmap;
+                }
+                mStats.record(CacheStats.SOFT_MISS);
+            }
         }
         return null;
     }
@@ -167,15 +623,611 @@ public class ImageCache {
      * @return El bitmap si lo encuentra en la caché, de lo contrario null:
      */
     public Bitmap getBitmapFromDiskCache(String data) {	
-        if (mDiskCache != null) {
-            return mDiskCache.get(data);
+        return getBitmapFromDiskCache(data, 0, 0);
+    }
+
+    /**
+     * Obtiene el bitmap desde la caché de disco, submuestreado al tamaño pedido.
+     *
+     * @param data Identificador único para el item el cual se va a obtener
+     * @param reqWidth El ancho pedido o 0 para el tamaño original
+     * @param reqHeight El alto pedido o 0 para el tamaño original
+     * @return El bitmap si lo encuentra en la caché, de lo contrario null
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int reqWidth, int reqHeight) {
+        return getBitmapFromDiskCache(data, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Como {@link #getBitmapFromDiskCache(String, int, int)} pero sin leer ni decodificar nada si
+     * la carga se cancela, y abortando el decode en curso de los bytes en memoria.
+     *
+     * @param signal La señal de cancelación de la carga o null
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int reqWidth, int reqHeight,
+            CancelSignal signal) {
+        final DiskLruCache diskCache = !CancelSignal.isCanceled(signal)
+                ? waitForDiskCache() : null;
+        if (diskCache != null) {
+            final Bitmap pending = getPendingDiskWrite(data, reqWidth, reqHeight);
+            if (pending != null) {
+                return pending;
+            }
+            if (mEncodedCache != null) {
+                return getBitmapFromEncodedCache(diskCache, data, reqWidth, reqHeight, signal);
+            }
+            return diskCache.get(data, reqWidth, reqHeight, mBitmapPool);
         }
         return null;
     }
 
+    /**
+     * Decodifica la imagen desde la caché de bytes codificados. Si no está se leen sus bytes de
+     * disco una vez y se guardan, así el siguiente fallo de la caché de bitmaps cuesta un decode
+     * pero no E/S.
+     */
+    private Bitmap getBitmapFromEncodedCache(DiskLruCache diskCache, String data, int reqWidth,
+            int reqHeight, CancelSignal signal) {
+        byte[] bytes = mEncodedCache.get(data);
+        if (bytes != null) {
+            mStats.record(CacheStats.ENCODED_HIT);
+        } else {
+            mStats.record(CacheStats.ENCODED_MISS);
+            final ByteBuffer buffer = diskCache.getByteBuffer(data);
+            if (buffer == null) {
+                return null;
+            }
+            // El buffer es del hilo y se reutiliza, la caché necesita su propia copia
+            bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            mEncodedCache.put(data, bytes);
+        }
+
+        final long start = System.nanoTime();
+        final Bitmap bitmap = BitmapDecoder.decodeSampledBitmapFromByteArray(bytes, 0,
+                bytes.length, reqWidth, reqHeight, mBitmapPool, signal);
+        mStats.recordTime(CacheStats.DECODE_TIME, start);
+        return bitmap;
+    }
+
+    /**
+     * Sirve una imagen que todavía está en la cola de escrituras, que para quien la pide ya está
+     * en disco.
+     */
+    private Bitmap getPendingDiskWrite(String data, int reqWidth, int reqHeight) {
+        final DiskWriteQueue queue = mDiskWriteQueue;
+        final Object pending = queue != null ? queue.get(data) : null;
+        if (pending instanceof Bitmap) {
+            return BitmapDecoder.scaleToRequestedSize((Bitmap) pending, reqWidth, reqHeight);
+        } else if (pending instanceof byte[]) {
+            return BitmapDecoder.decodeSampledBitmapFromByteArray((byte[]) pending,
+                    reqWidth, reqHeight, mBitmapPool);
+        } else if (pending instanceof File) {
+            return BitmapDecoder.decodeSampledBitmapFromFile(((File) pending).getPath(),
+                    reqWidth, reqHeight, mBitmapPool);
+        }
+        return null;
+    }
+
+    /**
+     * Devuelve la clave de la caché de memoria para un item decodificado a un tamaño concreto.
+     * Sin tamaño la clave es la misma que la de la caché de disco.
+     */
+    public static String getMemoryCacheKey(String data, int reqWidth, int reqHeight) {
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            return data;
+        }
+        return data + MEMORY_KEY_SEPARATOR + reqWidth + "x" + reqHeight;
+    }
+
+    /**
+     * Devuelve un bitmap al pool si la caché de memoria no lo tiene y nadie lo muestra, por ejemplo
+     * el resultado de un task cancelado que no llegó a mostrarse.
+     *
+     * @param data Identificador único del item
+     * @param reqWidth El ancho pedido o 0 si es el tamaño original
+     * @param reqHeight El alto pedido o 0 si es el tamaño original
+     * @param bitmap El bitmap descartado
+     */
+    public void recycleBitmap(String data, int reqWidth, int reqHeight, Bitmap bitmap) {
+        if (mBitmapPool == null || bitmap == null) {
+            return;
+        }
+        final String memoryKey = getMemoryCacheKey(data, reqWidth, reqHeight);
+        synchronized (mDisplayed) {
+            if ((mMemoryCache == null || mMemoryCache.peek(memoryKey) != bitmap)
+                    && (mSoftCache == null || !mSoftCache.contains(memoryKey, bitmap))
+                    && !isPendingDiskWrite(data, bitmap) && !isDisplayed(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Olvida un item en todas las cachés, en memoria a todos los tamaños, por ejemplo porque la
+     * imagen cambió en el proveedor. La próxima carga lo vuelve a pedir. Los bitmaps que salen
+     * pasan al pool cuando ya no se muestran.
+     *
+     * @param data Identificador único del item
+     */
+    public void invalidate(String data) {
+        final String prefix = data + MEMORY_KEY_SEPARATOR;
+        if (mMemoryCache != null) {
+            for (String key : mMemoryCache.keys()) {
+                if (key.equals(data) || key.startsWith(prefix)) {
+                    mMemoryCache.remove(key);
+                }
+            }
+        }
+        if (mSoftCache != null) {
+            for (String key : mSoftCache.keys()) {
+                if (key.equals(data) || key.startsWith(prefix)) {
+                    final Bitmap removed = mSoftCache.remove(key);
+                    if (removed != null) {
+                        recycleToPool(key, removed);
+                    }
+                }
+            }
+        }
+        if (mEncodedCache != null) {
+            mEncodedCache.remove(data);
+        }
+        final DiskLruCache diskCache = waitForDiskCache();
+        if (diskCache != null) {
+            diskCache.remove(data);
+        }
+    }
+
+    /**
+     * Devuelve los identificadores de los items guardados en cualquier nivel: la memoria, los
+     * bytes codificados y el disco. Para revalidarlos todos, no solo los que siguen en disco.
+     */
+    public List<String> keys() {
+        final LinkedHashSet<String> keys = new LinkedHashSet<String>();
+        if (mMemoryCache != null) {
+            for (String memoryKey : mMemoryCache.keys()) {
+                keys.add(getDataFromMemoryKey(memoryKey));
+            }
+        }
+        if (mSoftCache != null) {
+            for (String memoryKey : mSoftCache.keys()) {
+                keys.add(getDataFromMemoryKey(memoryKey));
+            }
+        }
+        if (mEncodedCache != null) {
+            keys.addAll(mEncodedCache.keys());
+        }
+        final DiskLruCache diskCache = waitForDiskCache();
+        if (diskCache != null) {
+            keys.addAll(diskCache.keys());
+        }
+        return new ArrayList<String>(keys);
+    }
+
+    /**
+     * Devuelve true si el item está en la caché de disco.
+     */
+    public boolean isInDiskCache(String data) {
+        final DiskLruCache diskCache = waitForDiskCache();
+        return diskCache != null && diskCache.containsKey(data);
+    }
+
+    /**
+     * Devuelve la etiqueta con la que se guardó el item en la caché de disco, o null si no tiene
+     * o no está.
+     */
+    public String getDiskCacheTag(String data) {
+        final DiskLruCache diskCache = waitForDiskCache();
+        return diskCache != null ? diskCache.getTag(data) : null;
+    }
+
+    /**
+     * Devuelve el identificador del item de una clave de la caché de memoria, sin el tamaño.
+     */
+    private static String getDataFromMemoryKey(String memoryKey) {
+        final int separator = memoryKey.lastIndexOf(MEMORY_KEY_SEPARATOR);
+        if (separator > 0 && memoryKey.substring(separator + 1).matches("\\d+x\\d+")) {
+            return memoryKey.substring(0, separator);
+        }
+        return memoryKey;
+    }
+
+    /**
+     * Devuelve el pool de bitmaps reutilizables o null si no está habilitado.
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Reduce la caché de memoria a una fracción de su tamaño según el nivel de
+     * {@link ComponentCallbacks2#onTrimMemory(int)}; en los niveles críticos también vacía el pool
+     * y descarta las escrituras a disco pendientes. Desde Ice Cream Sandwich se llama sola, antes
+     * se puede llamar desde la actividad. La caché recupera su tamaño en la primera lectura,
+     * escritura o cambio de configuración cuando pasa un rato sin avisos.
+     *
+     * @param level El nivel de onTrimMemory
+     */
+    public void onTrimMemory(int level) {
+        final float fraction = getTrimFraction(level);
+        if (fraction >= 1f) {
+            return;
+        }
+        // Al pasar a background se guardan las claves más usadas antes de recortar la caché, el
+        // proceso puede morir sin que se llame a close()
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && mTrimmedAt == 0) {
+            saveHotKeys();
+        }
+        mTrimmedAt = SystemClock.uptimeMillis();
+        if (mMemoryCache != null) {
+            trimToFraction(mMemoryCache, mMemCacheBudget, fraction);
+        }
+        if (mEncodedCache != null) {
+            trimToFraction(mEncodedCache, mEncodedCacheBudget, fraction);
+        }
+        if (fraction <= 0.25f) {
+            if (mSoftCache != null) {
+                mSoftCache.clear();
+            }
+            if (mBitmapPool != null) {
+                mBitmapPool.clear();
+            }
+            dropPendingDiskWrites();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "onTrimMemory - nivel " + level + ", caché de memoria al "
+                    + (int) (fraction * 100) + "%");
+        }
+    }
+
+    /**
+     * Igual que {@link #onTrimMemory(int)} con el nivel más alto.
+     */
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    private static void trimToFraction(MemoryCache<?> cache, int budget, float fraction) {
+        if (fraction > 0f) {
+            cache.resize(Math.max(1, (int) (budget * fraction)));
+        } else {
+            cache.resize(1);
+            cache.evictAll();
+        }
+    }
+
+    private static float getTrimFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // En background o sin interfaz visible
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1f;
+    }
+
+    /**
+     * Devuelve a la caché de memoria su tamaño si hace un rato que no hay avisos de memoria.
+     */
+    private void regrowIfRelieved() {
+        final long trimmedAt = mTrimmedAt;
+        if (trimmedAt != 0 && SystemClock.uptimeMillis() - trimmedAt > REGROW_DELAY) {
+            mTrimmedAt = 0;
+            if (mMemoryCache != null) {
+                mMemoryCache.resize(mMemCacheBudget);
+            }
+            if (mEncodedCache != null) {
+                mEncodedCache.resize(mEncodedCacheBudget);
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "regrowIfRelieved - caché de memoria al 100%");
+            }
+        }
+    }
+
+    /**
+     * Pasa los avisos de memoria del sistema a la caché mientras exista. Solo guarda una
+     * referencia débil, así registrarlo en el contexto de la aplicación no retiene la caché.
+     */
+    @SuppressLint("NewApi")
+    private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+        private final Context mAppContext;
+        private final WeakReference<ImageCache> mCacheReference;
+
+        TrimMemoryCallbacks(Context appContext, ImageCache cache) {
+            mAppContext = appContext;
+            mCacheReference = new WeakReference<ImageCache>(cache);
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            final ImageCache cache = getCacheOrUnregister();
+            if (cache != null) {
+                cache.onTrimMemory(level);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            final ImageCache cache = getCacheOrUnregister();
+            if (cache != null) {
+                cache.onLowMemory();
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            final ImageCache cache = getCacheOrUnregister();
+            if (cache != null) {
+                cache.regrowIfRelieved();
+            }
+        }
+
+        private ImageCache getCacheOrUnregister() {
+            final ImageCache cache = mCacheReference.get();
+            if (cache == null) {
+                mAppContext.unregisterComponentCallbacks(this);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Devuelve las estadísticas de aciertos, fallos y tiempos de las cachés.
+     */
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Devuelve la caché de disco a {@link DiskCacheRegistry} cuando terminan las escrituras
+     * pendientes; si nadie más la usa se vuelca y se cierra. Después la caché sigue sirviendo
+     * desde memoria, pero ya no lee ni escribe en disco.
+     */
+    public void close() {
+        final DiskLruCache diskCache;
+        final DiskWriteQueue queue;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            // Si todavía se está abriendo, la suelta el hilo que la abre
+            mClosed = true;
+            diskCache = mDiskCache;
+            queue = mDiskWriteQueue;
+        }
+        if (diskCache == null) {
+            return;
+        }
+        saveHotKeys();
+        // Lo que llegue a partir de aquí ya no ve la caché de disco. Una escritura que ya tenía la
+        // cola la encola antes de la liberación o la rechaza la caché al cerrarse
+        synchronized (this) {
+            mDiskWriteQueue = null;
+            mDiskCache = null;
+        }
+        if (queue != null) {
+            queue.runAfterPending(new Runnable() {
+                @Override
+                public void run() {
+                    DiskCacheRegistry.release(diskCache);
+                }
+            });
+        } else {
+            DiskCacheRegistry.release(diskCache);
+        }
+    }
+
+    /**
+     * Guarda las claves más usadas de la caché de memoria para precargarlas la próxima vez que se
+     * cree la caché. Se llama sola al pasar a background y en {@link #close()}; el archivo se
+     * escribe en el hilo de escritura a disco si lo hay.
+     */
+    public void saveHotKeys() {
+        // Sin esperar, si la caché de disco todavía se está abriendo no hay nada que guardar
+        final DiskLruCache diskCache = mDiskCache;
+        if (mWarmUpSize <= 0 || mMemoryCache == null || diskCache == null) {
+            return;
+        }
+        final List<String> keys = mMemoryCache.hotKeys(mWarmUpSize);
+        final File file = new File(diskCache.getCacheDir(), HOT_KEYS_FILE);
+        final DiskWriteQueue queue = mDiskWriteQueue;
+        if (queue != null) {
+            queue.runAfterPending(new Runnable() {
+                @Override
+                public void run() {
+                    writeHotKeys(file, keys);
+                }
+            });
+        } else {
+            writeHotKeys(file, keys);
+        }
+    }
+
+    /**
+     * Lee las claves guardadas en la sesión anterior y encola, con prioridad baja en el pool de
+     * disco, un trabajo por clave que la decodifica al tamaño con el que se usó y la añade a la
+     * caché de memoria. Las cargas que pide la interfaz pasan antes y la precarga se abandona si
+     * la caché se llena o hay presión de memoria.
+     */
+    private void warmUp(DiskLruCache diskCache, final LoaderExecutor executor) {
+        final File file = new File(diskCache.getCacheDir(), HOT_KEYS_FILE);
+        executor.executeOnDisk(new LoaderExecutor.Job(LoaderExecutor.PRIORITY_LOW) {
+            @Override
+            protected void execute() {
+                final List<String> keys = readHotKeys(file);
+                for (String key : keys) {
+                    executor.executeOnDisk(new WarmUpJob(key));
+                }
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "warmUp - " + keys.size() + " claves para precargar");
+                }
+            }
+
+            @Override
+            protected boolean isStale() {
+                return false;
+            }
+
+            @Override
+            protected void onDropped() {
+            }
+        });
+    }
+
+    /**
+     * Precarga de una clave de la caché de memoria desde la caché de disco.
+     */
+    private class WarmUpJob extends LoaderExecutor.Job {
+        private final String mMemoryKey;
+
+        WarmUpJob(String memoryKey) {
+            super(LoaderExecutor.PRIORITY_LOW);
+            mMemoryKey = memoryKey;
+        }
+
+        @Override
+        protected void execute() {
+            // La clave de memoria es data@anchoxalto, o solo data sin tamaño
+            String data = mMemoryKey;
+            int reqWidth = 0;
+            int reqHeight = 0;
+            final int separator = mMemoryKey.lastIndexOf(MEMORY_KEY_SEPARATOR);
+            if (separator > 0) {
+                final String size = mMemoryKey.substring(separator + 1);
+                final int x = size.indexOf('x');
+                try {
+                    reqWidth = Integer.parseInt(size.substring(0, x));
+                    reqHeight = Integer.parseInt(size.substring(x + 1));
+                    data = mMemoryKey.substring(0, separator);
+                } catch (final RuntimeException e) {
+                    // No era un tamaño, el separador formaba parte de la clave
+                    reqWidth = 0;
+                    reqHeight = 0;
+                }
+            }
+
+            final Bitmap bitmap = getBitmapFromDiskCache(data, reqWidth, reqHeight);
+            if (bitmap != null) {
+                addBitmapToCache(data, reqWidth, reqHeight, bitmap);
+            }
+        }
+
+        @Override
+        protected boolean isStale() {
+            return mTrimmedAt != 0 || mMemoryCache.peek(mMemoryKey) != null
+                    || mMemoryCache.size() >= mMemoryCache.maxSize();
+        }
+
+        @Override
+        protected void onDropped() {
+        }
+    }
+
+    private static void writeHotKeys(File file, List<String> keys) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    "UTF-8"));
+            for (String key : keys) {
+                if (key.indexOf('\n') < 0) {
+                    writer.write(key);
+                    writer.write('\n');
+                }
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "Error guardando las claves más usadas en " + file);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error en writeHotKeys: " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error en writeHotKeys: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static List<String> readHotKeys(File file) {
+        final List<String> keys = new ArrayList<String>();
+        if (!file.exists()) {
+            return keys;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    keys.add(line);
+                }
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Error en readHotKeys: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    Log.e(TAG, "Error en readHotKeys: " + e.getMessage());
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Vacía todas las cachés. En el hilo de UI la de disco se vacía en background, después de que
+     * termine de abrirse si todavía no lo ha hecho.
+     */
     public void clearCaches() {
-        mDiskCache.clearCache();
-        mMemoryCache.evictAll();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    clearDiskCache();
+                }
+            }, "FotoCach-clear").start();
+        } else {
+            clearDiskCache();
+        }
+        if (mMemoryCache != null) {
+            mMemoryCache.evictAll();
+        }
+        if (mSoftCache != null) {
+            mSoftCache.clear();
+        }
+        if (mEncodedCache != null) {
+            mEncodedCache.evictAll();
+        }
+        // Los bitmaps que acaban de salir pueden estar todavía en pantalla, no se reutilizan
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
+    }
+
+    private void clearDiskCache() {
+        final DiskLruCache diskCache = waitForDiskCache();
+        dropPendingDiskWrites();
+        if (diskCache != null) {
+            diskCache.clearCache();
+        }
     }
 
     /**
@@ -184,15 +1236,41 @@ public class ImageCache {
     public static class ImageCacheParams {
         public String uniqueName;
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public int softCacheSize = DEFAULT_SOFT_CACHE_SIZE;
+        public int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public int diskCacheMaxItems = DEFAULT_DISK_CACHE_MAX_ITEMS;
+        public int diskWriteQueueSize = DEFAULT_DISK_WRITE_QUEUE_SIZE;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean clearDiskCacheOnStart = DEFAULT_CLEAR_DISK_CACHE_ON_START;
+        public int memoryEvictionPolicy = DEFAULT_MEMORY_EVICTION_POLICY;
+        public int diskEvictionPolicy = DEFAULT_DISK_EVICTION_POLICY;
+        public int encodedEvictionPolicy = DEFAULT_ENCODED_EVICTION_POLICY;
+        // Claves más usadas que se precargan al arrancar, 0 para no precargar
+        public int warmUpSize = DEFAULT_WARM_UP_SIZE;
 
         public ImageCacheParams(String uniqueName) {
             this.uniqueName = uniqueName;
         }
+
+        /**
+         * Calcula el tamaño de la caché de memoria como un porcentaje de la memoria que el sistema
+         * asigna a la aplicación ({@link Utils#getMemoryClass(Context)}), así se aprovecha la de
+         * los dispositivos grandes sin arriesgarse en los pequeños.
+         *
+         * @param context El contexto a utilizar
+         * @param percent El porcentaje entre 0.05 y 0.8
+         */
+        public void setMemCacheSizePercent(Context context, float percent) {
+            if (percent < 0.05f || percent > 0.8f) {
+                throw new IllegalArgumentException("setMemCacheSizePercent - percent must be "
+                        + "between 0.05 and 0.8 (inclusive)");
+            }
+            memCacheSize = Math.round(percent * Utils.getMemoryClass(context) * 1024 * 1024);
+        }
     }
 }
@@ -1,17 +1,22 @@
 package android.hispano.fotocach;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
-import android.app.Activity;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
@@ -23,11 +28,477 @@ public class ImageFetcher extends ImageWorker {
 	public ImageFetcher(Context context) {
 		super(context);
 		mContext = context;
+		mContactsObserver = new ContactsObserver(mHandler, context.getApplicationContext(), this);
+		context.getContentResolver().registerContentObserver(Contacts.CONTENT_URI, true,
+				mContactsObserver);
 	}
 
 	private static final String TAG = "ImageFetcher";
 	    private static final int CACHE_SIZE = 10 * 1024 * 1024; // 10MB
 	    public static final String CACHE_DIR = "photos";
+	    // SQLite admite como mucho 999 argumentos por consulta
+	    private static final int MAX_QUERY_ARGS = 500;
+	    // Espera tras un cambio en los contactos antes de revalidar, los cambios llegan a ráfagas
+	    private static final long REVALIDATE_DELAY = 2000;
+
+	    private final Handler mHandler = new Handler(Looper.getMainLooper());
+	    private final ContactsObserver mContactsObserver;
+	    private final Runnable mRevalidateRunnable = new Runnable() {
+	    	@Override
+	    	public void run() {
+	    		revalidate();
+	    	}
+	    };
+
+	    // La caché de CACHE_DIR, obtenida de DiskCacheRegistry la primera vez que hace falta
+	    private DiskLruCache mPhotoCache;
+	    private boolean mClosed = false;
+
+	    // La de los métodos estáticos, que no tienen close(): se queda abierta mientras viva el
+	    // proceso, así cada llamada no vuelve a leer el journal
+	    private static DiskLruCache sStaticPhotoCache;
+
+	    /**
+	     * Devuelve la caché de CACHE_DIR que usa este ImageFetcher, o null si no se pudo abrir o
+	     * ya se cerró.
+	     */
+	    private synchronized DiskLruCache getPhotoCache() {
+	    	if (mPhotoCache == null && !mClosed) {
+	    		mPhotoCache = acquirePhotoCache(mContext);
+	    	}
+	    	return mPhotoCache;
+	    }
+
+	    private static DiskLruCache acquirePhotoCache(Context context) {
+	    	return DiskCacheRegistry.acquire(DiskLruCache.getDiskCacheDir(context, CACHE_DIR),
+	    			CACHE_SIZE, DiskLruCache.DEFAULT_MAX_ITEM_COUNT);
+	    }
+
+	    private static synchronized DiskLruCache getStaticPhotoCache(Context context) {
+	    	if (sStaticPhotoCache == null) {
+	    		sStaticPhotoCache = acquirePhotoCache(context.getApplicationContext());
+	    	}
+	    	return sStaticPhotoCache;
+	    }
+
+	    /**
+	     * Devuelve la caché de disco de las fotos a {@link DiskCacheRegistry}. Llamar cuando el
+	     * ImageFetcher ya no se vaya a usar, por ejemplo en onDestroy.
+	     */
+	    public synchronized void close() {
+	    	mClosed = true;
+	    	mHandler.removeCallbacks(mRevalidateRunnable);
+	    	mContactsObserver.unregister();
+	    	if (mPhotoCache != null) {
+	    		DiskCacheRegistry.release(mPhotoCache);
+	    		mPhotoCache = null;
+	    	}
+	    }
+
+	    /**
+	     * Precarga las fotos de varios contactos, por ejemplo la siguiente página de una lista, con una
+	     * consulta para los IDs de foto y otra para los blobs en lugar de dos consultas por contacto. Se
+	     * ejecuta en background con prioridad baja y llena la caché de disco y la de memoria.
+	     *
+	     * La caché de memoria guarda los bitmaps con su tamaño en la clave y
+	     * {@link #loadImage(String, String, String, android.widget.ImageView)} busca el del
+	     * ImageView, así que hay que pasar el tamaño del avatar: con otro tamaño se ocupa memoria
+	     * con bitmaps que nadie va a pedir.
+	     *
+	     * @param contactIds Los IDs de los contactos a precargar
+	     * @param reqWidth El ancho en píxeles en el que se mostrarán las imágenes
+	     * @param reqHeight El alto en píxeles en el que se mostrarán las imágenes
+	     */
+	    public void prefetch(Collection<String> contactIds, final int reqWidth, final int reqHeight) {
+	    	final List<String> ids = new ArrayList<String>(contactIds);
+	    	getLoaderExecutor().executeOnProvider(new LoaderExecutor.Job(LoaderExecutor.PRIORITY_LOW) {
+	    		@Override
+	    		protected void execute() {
+	    			prefetchNow(ids, reqWidth, reqHeight);
+	    		}
+
+	    		@Override
+	    		protected boolean isStale() {
+	    			return false;
+	    		}
+
+	    		@Override
+	    		protected void onDropped() {
+	    			if (BuildConfig.DEBUG) {
+	    				Log.d(TAG, "prefetch - descartada la precarga de " + ids.size() + " contactos");
+	    			}
+	    		}
+	    	});
+	    }
+
+	    private void prefetchNow(List<String> contactIds, int reqWidth, int reqHeight) {
+	    	final DiskLruCache cache = getPhotoCache();
+	    	if (cache == null) {
+	    		return;
+	    	}
+
+	    	// Solo se consultan los que no están ya en disco; esos solo hay que decodificarlos
+	    	final List<String> missing = new ArrayList<String>();
+	    	final List<String> onDisk = new ArrayList<String>();
+	    	for (String id : contactIds) {
+	    		if (cache.containsKey(id)) {
+	    			onDisk.add(id);
+	    		} else {
+	    			missing.add(id);
+	    		}
+	    	}
+
+	    	final CacheStats stats = CacheStats.getDefault();
+	    	final Map<String, byte[]> blobs = fetchPhotos(cache, missing);
+
+	    	final ImageCache imageCache = getImageCache();
+	    	for (Map.Entry<String, byte[]> entry : blobs.entrySet()) {
+	    		final String idContact = entry.getKey();
+	    		final byte[] photoBlob = entry.getValue();
+	    		if (imageCache != null
+	    				&& imageCache.getBitmapFromMemCache(idContact, reqWidth, reqHeight) == null) {
+	    			final long decodeStart = System.nanoTime();
+	    			final Bitmap bitmap = BitmapDecoder.decodeSampledBitmapFromByteArray(
+	    					photoBlob, reqWidth, reqHeight, imageCache.getBitmapPool());
+	    			stats.recordTime(CacheStats.DECODE_TIME, decodeStart);
+	    			imageCache.addBitmapToCache(idContact, reqWidth, reqHeight, bitmap);
+	    		}
+	    	}
+
+	    	// Los que ya estaban en disco se decodifican desde la caché de bytes codificados o la
+	    	// de disco del ImageCache, y si no están ahí desde la caché de fotos
+	    	int decoded = 0;
+	    	for (String idContact : onDisk) {
+	    		if (imageCache == null
+	    				|| imageCache.getBitmapFromMemCache(idContact, reqWidth, reqHeight) != null) {
+	    			continue;
+	    		}
+	    		Bitmap bitmap = imageCache.getBitmapFromDiskCache(idContact, reqWidth, reqHeight);
+	    		if (bitmap == null) {
+	    			final long decodeStart = System.nanoTime();
+	    			bitmap = cache.get(idContact, reqWidth, reqHeight, imageCache.getBitmapPool());
+	    			stats.recordTime(CacheStats.DECODE_TIME, decodeStart);
+	    		}
+	    		if (bitmap != null) {
+	    			imageCache.addBitmapToCache(idContact, reqWidth, reqHeight, bitmap);
+	    			decoded++;
+	    		}
+	    	}
+	    	if (BuildConfig.DEBUG) {
+	    		Log.d(TAG, "prefetch - precargados " + blobs.size() + " y decodificados " + decoded
+	    				+ " de disco de " + contactIds.size());
+	    	}
+	    }
+
+	    /**
+	     * Consulta las fotos de los contactos con dos consultas por lote y las guarda en la caché
+	     * de fotos, con su ID y versión como etiqueta, y en la de disco del ImageCache.
+	     *
+	     * @return Los blobs por ID de contacto
+	     */
+	    private Map<String, byte[]> fetchPhotos(DiskLruCache cache, List<String> contactIds) {
+	    	final CacheStats stats = CacheStats.getDefault();
+	    	final long start = System.nanoTime();
+	    	final Map<String, String> photoIds = queryPhotoIds(contactIds);
+	    	final Map<String, PhotoBlob> photos = queryPhotoBlobs(photoIds.values());
+	    	stats.recordTime(CacheStats.PROVIDER_FETCH_TIME, start);
+	    	stats.record(CacheStats.PROVIDER_FETCH, photos.size());
+
+	    	final Map<String, byte[]> blobs = new HashMap<String, byte[]>();
+	    	final ImageCache imageCache = getImageCache();
+	    	for (Map.Entry<String, String> entry : photoIds.entrySet()) {
+	    		final String idContact = entry.getKey();
+	    		final PhotoBlob photo = photos.get(entry.getValue());
+	    		if (photo == null) {
+	    			continue;
+	    		}
+	    		cache.put(idContact, photo.data, photo.tag);
+	    		if (imageCache != null) {
+	    			imageCache.addBytesToDiskCache(idContact, photo.data, photo.tag);
+	    		}
+	    		blobs.put(idContact, photo.data);
+	    	}
+	    	return blobs;
+	    }
+
+	    /**
+	     * Comprueba en background, con prioridad baja, qué fotos de la caché cambiaron en el
+	     * proveedor y solo esas se olvidan y se vuelven a pedir. Mientras tanto se sigue sirviendo
+	     * la versión guardada. Se llama sola cuando cambian los contactos.
+	     */
+	    public void revalidate() {
+	    	getLoaderExecutor().executeOnProvider(new LoaderExecutor.Job(LoaderExecutor.PRIORITY_LOW) {
+	    		@Override
+	    		protected void execute() {
+	    			revalidateNow();
+	    		}
+
+	    		@Override
+	    		protected boolean isStale() {
+	    			return false;
+	    		}
+
+	    		@Override
+	    		protected void onDropped() {
+	    			// Si la cola está llena se reintenta más tarde
+	    			scheduleRevalidation();
+	    		}
+	    	});
+	    }
+
+	    private void scheduleRevalidation() {
+	    	mHandler.removeCallbacks(mRevalidateRunnable);
+	    	mHandler.postDelayed(mRevalidateRunnable, REVALIDATE_DELAY);
+	    }
+
+	    private void revalidateNow() {
+	    	final DiskLruCache cache = getPhotoCache();
+	    	if (cache == null) {
+	    		return;
+	    	}
+
+	    	// Los contactos guardados en cualquier nivel: la caché de fotos y las del ImageCache
+	    	final ImageCache imageCache = getImageCache();
+	    	final LinkedHashSet<String> cached = new LinkedHashSet<String>(cache.keys());
+	    	if (imageCache != null) {
+	    		cached.addAll(imageCache.keys());
+	    	}
+	    	final List<String> contactIds = new ArrayList<String>(cached);
+
+	    	// La etiqueta actual de cada uno, sin leer los blobs
+	    	final Map<String, String> photoIds = queryPhotoIds(contactIds);
+	    	final Map<String, String> tags = queryPhotoTags(photoIds.values());
+
+	    	// Los que tienen otra foto o la misma en otra versión se vuelven a pedir; los que se
+	    	// quedaron sin foto solo se olvidan, no hay nada que pedir
+	    	final List<String> changed = new ArrayList<String>();
+	    	final List<String> removed = new ArrayList<String>();
+	    	for (String idContact : contactIds) {
+	    		final String photoId = photoIds.get(idContact);
+	    		final String tag = photoId != null ? tags.get(photoId) : null;
+	    		if (!isCurrent(cache, imageCache, idContact, tag)) {
+	    			(tag != null ? changed : removed).add(idContact);
+	    		}
+	    	}
+	    	if (changed.isEmpty() && removed.isEmpty()) {
+	    		return;
+	    	}
+
+	    	final List<String> stale = new ArrayList<String>(changed);
+	    	stale.addAll(removed);
+	    	for (String idContact : stale) {
+	    		cache.remove(idContact);
+	    		if (imageCache != null) {
+	    			imageCache.invalidate(idContact);
+	    		}
+	    	}
+	    	final Map<String, byte[]> blobs = changed.isEmpty()
+	    			? new HashMap<String, byte[]>() : fetchPhotos(cache, changed);
+	    	if (BuildConfig.DEBUG) {
+	    		Log.d(TAG, "revalidate - " + changed.size() + " fotos cambiadas y "
+	    				+ removed.size() + " quitadas de " + contactIds.size() + ", "
+	    				+ blobs.size() + " actualizadas");
+	    	}
+	    }
+
+	    /**
+	     * Devuelve true si lo guardado del contacto es de la versión actual de su foto. Se compara
+	     * la etiqueta de cada caché de disco que lo tiene; una entrada sin etiqueta de un contacto
+	     * que sigue sin foto no ha cambiado. Lo que solo está en memoria no tiene etiqueta con la
+	     * que comparar y se da por cambiado.
+	     *
+	     * @param tag La etiqueta actual o null si el contacto no tiene foto
+	     */
+	    private static boolean isCurrent(DiskLruCache cache, ImageCache imageCache,
+	    		String idContact, String tag) {
+	    	boolean stored = false;
+	    	if (cache.containsKey(idContact)) {
+	    		if (!sameTag(tag, cache.getTag(idContact))) {
+	    			return false;
+	    		}
+	    		stored = true;
+	    	}
+	    	if (imageCache != null && imageCache.isInDiskCache(idContact)) {
+	    		if (!sameTag(tag, imageCache.getDiskCacheTag(idContact))) {
+	    			return false;
+	    		}
+	    		stored = true;
+	    	}
+	    	return stored;
+	    }
+
+	    private static boolean sameTag(String current, String stored) {
+	    	return current == null ? stored == null : current.equals(stored);
+	    }
+
+	    /**
+	     * Avisa de los cambios en los contactos. Solo guarda una referencia débil al ImageFetcher y
+	     * se da de baja cuando este desaparece, así no lo retiene el ContentResolver.
+	     */
+	    private static class ContactsObserver extends ContentObserver {
+	    	private final Context mAppContext;
+	    	private final WeakReference<ImageFetcher> mFetcherReference;
+
+	    	ContactsObserver(Handler handler, Context appContext, ImageFetcher fetcher) {
+	    		super(handler);
+	    		mAppContext = appContext;
+	    		mFetcherReference = new WeakReference<ImageFetcher>(fetcher);
+	    	}
+
+	    	@Override
+	    	public void onChange(boolean selfChange) {
+	    		final ImageFetcher fetcher = mFetcherReference.get();
+	    		if (fetcher == null) {
+	    			unregister();
+	    		} else {
+	    			fetcher.scheduleRevalidation();
+	    		}
+	    	}
+
+	    	void unregister() {
+	    		mAppContext.getContentResolver().unregisterContentObserver(this);
+	    	}
+	    }
+
+	    /**
+	     * El blob de una foto y la etiqueta que identifica su versión.
+	     */
+	    private static final class PhotoBlob {
+	    	private final byte[] data;
+	    	private final String tag;
+
+	    	private PhotoBlob(byte[] data, String tag) {
+	    		this.data = data;
+	    		this.tag = tag;
+	    	}
+	    }
+
+	    /**
+	     * La etiqueta de una foto: su ID en la tabla de datos y la versión de esa fila, que el
+	     * proveedor incrementa con cada cambio. No se usa Contacts.PHOTO_FILE_ID: el proyecto
+	     * compila contra API 14, donde existe, pero mantiene minSdkVersion 8, así que haría falta
+	     * comprobar la versión, y el ID y la versión de la fila ya identifican la foto.
+	     */
+	    private static String makeTag(String photoId, String dataVersion) {
+	    	return photoId + ':' + dataVersion;
+	    }
+
+	    /**
+	     * Devuelve el ID de foto de cada contacto que tiene una, con una consulta por cada
+	     * {@link #MAX_QUERY_ARGS} contactos.
+	     */
+	    private static Map<String, String> queryPhotoIds(List<String> contactIds) {
+	    	final Map<String, String> photoIds = new HashMap<String, String>();
+	    	final ContentResolver resolver = mContext.getContentResolver();
+	    	for (int start = 0; start < contactIds.size(); start += MAX_QUERY_ARGS) {
+	    		final List<String> chunk = contactIds.subList(start,
+	    				Math.min(start + MAX_QUERY_ARGS, contactIds.size()));
+	    		final Cursor cursor = resolver.query(
+	    				Contacts.CONTENT_URI,
+	    				new String[] {Contacts._ID, Contacts.PHOTO_ID},
+	    				Contacts._ID + " IN (" + makePlaceholders(chunk.size()) + ")",
+	    				chunk.toArray(new String[chunk.size()]),
+	    				null);
+	    		if (cursor == null) {
+	    			continue;
+	    		}
+	    		try {
+	    			final int idColumn = cursor.getColumnIndex(Contacts._ID);
+	    			final int photoColumn = cursor.getColumnIndex(Contacts.PHOTO_ID);
+	    			while (cursor.moveToNext()) {
+	    				final String photoId = cursor.getString(photoColumn);
+	    				if (photoId != null) {
+	    					photoIds.put(cursor.getString(idColumn), photoId);
+	    				}
+	    			}
+	    		} finally {
+	    			cursor.close();
+	    		}
+	    	}
+	    	return photoIds;
+	    }
+
+	    /**
+	     * Devuelve el blob y la etiqueta de cada ID de foto, con una consulta por cada
+	     * {@link #MAX_QUERY_ARGS} fotos.
+	     */
+	    private static Map<String, PhotoBlob> queryPhotoBlobs(Collection<String> photoIds) {
+	    	final Map<String, PhotoBlob> blobs = new HashMap<String, PhotoBlob>();
+	    	final List<String> ids = new ArrayList<String>(photoIds);
+	    	final ContentResolver resolver = mContext.getContentResolver();
+	    	for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+	    		final List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+	    		final Cursor cursor = resolver.query(
+	    				Data.CONTENT_URI,
+	    				new String[] {Data._ID, Data.DATA_VERSION, Photo.PHOTO},
+	    				Data._ID + " IN (" + makePlaceholders(chunk.size()) + ")",
+	    				chunk.toArray(new String[chunk.size()]),
+	    				null);
+	    		if (cursor == null) {
+	    			continue;
+	    		}
+	    		try {
+	    			final int idColumn = cursor.getColumnIndex(Data._ID);
+	    			final int versionColumn = cursor.getColumnIndex(Data.DATA_VERSION);
+	    			final int photoColumn = cursor.getColumnIndex(Photo.PHOTO);
+	    			while (cursor.moveToNext()) {
+	    				final byte[] photoBlob = cursor.getBlob(photoColumn);
+	    				if (photoBlob != null) {
+	    					final String photoId = cursor.getString(idColumn);
+	    					blobs.put(photoId, new PhotoBlob(photoBlob,
+	    							makeTag(photoId, cursor.getString(versionColumn))));
+	    				}
+	    			}
+	    		} finally {
+	    			cursor.close();
+	    		}
+	    	}
+	    	return blobs;
+	    }
+
+	    /**
+	     * Devuelve la etiqueta de cada ID de foto sin leer los blobs, con una consulta por cada
+	     * {@link #MAX_QUERY_ARGS} fotos.
+	     */
+	    private static Map<String, String> queryPhotoTags(Collection<String> photoIds) {
+	    	final Map<String, String> tags = new HashMap<String, String>();
+	    	final List<String> ids = new ArrayList<String>(photoIds);
+	    	final ContentResolver resolver = mContext.getContentResolver();
+	    	for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+	    		final List<String> chunk = ids.subList(start, Math.min(start + MAX_QUERY_ARGS, ids.size()));
+	    		final Cursor cursor = resolver.query(
+	    				Data.CONTENT_URI,
+	    				new String[] {Data._ID, Data.DATA_VERSION},
+	    				Data._ID + " IN (" + makePlaceholders(chunk.size()) + ")",
+	    				chunk.toArray(new String[chunk.size()]),
+	    				null);
+	    		if (cursor == null) {
+	    			continue;
+	    		}
+	    		try {
+	    			final int idColumn = cursor.getColumnIndex(Data._ID);
+	    			final int versionColumn = cursor.getColumnIndex(Data.DATA_VERSION);
+	    			while (cursor.moveToNext()) {
+	    				final String photoId = cursor.getString(idColumn);
+	    				tags.put(photoId, makeTag(photoId, cursor.getString(versionColumn)));
+	    			}
+	    		} finally {
+	    			cursor.close();
+	    		}
+	    	}
+	    	return tags;
+	    }
+
+	    private static String makePlaceholders(int count) {
+	    	final StringBuilder builder = new StringBuilder(count * 2);
+	    	for (int i = 0; i < count; i++) {
+	    		if (i > 0) {
+	    			builder.append(',');
+	    		}
+	    		builder.append('?');
+	    	}
+	    	return builder.toString();
+	    }
 
 	    /**
 	     * El método del proceso principal, el cual será llamado por el ImageWorker en el AsyncTask en el 
@@ -36,117 +507,165 @@ public class ImageFetcher extends ImageWorker {
 	     * @param data La data para cargar el bitmap, en este caso, un ID de un contacto
 	     * @return El bitmap recuperado
 	     */
-	    private Bitmap processBitmap(String idContact) {
+	    private Bitmap processBitmap(String idContact, int reqWidth, int reqHeight,
+	    		CancelSignal signal) {
 	        Log.d(TAG, "Contact ID to process - " + idContact);
 	            
-	        // Recupera un bitmap, lo escribe a un archivo
-	        retrieveBitmap(mContext, idContact);
+	        // Recupera un bitmap, lo escribe a un archivo y lo decodifica al tamaño pedido
+	        final DiskLruCache cache = getPhotoCache();
+	        final File file = cache != null ? retrieveBitmap(cache, idContact, signal) : null;
+	        if (file != null && !CancelSignal.isCanceled(signal)) {
+	        	final ImageCache imageCache = getImageCache();
+	        	if (imageCache != null) {
+	        		// Copia los bytes originales a la caché de disco del ImageCache para que
+	        		// addBitmapToCache no tenga que volver a comprimir el bitmap
+	        		imageCache.addFileToDiskCache(idContact, file, cache.getTag(idContact));
+	        	}
+	        	final long start = System.nanoTime();
+	        	final Bitmap bitmap = BitmapDecoder.decodeSampledBitmapFromFile(file.getPath(),
+	        			reqWidth, reqHeight, imageCache != null ? imageCache.getBitmapPool() : null,
+	        			signal);
+	        	CacheStats.getDefault().recordTime(CacheStats.DECODE_TIME, start);
+	        	return bitmap;
+	        }
 	        return null;
 	    }
 	    
 	    @Override
 	    protected Bitmap processBitmap(Object data) {
-	        return processBitmap(String.valueOf(data));
+	        return processBitmap(String.valueOf(data), 0, 0, null);
+	    }
+
+	    @Override
+	    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight) {
+	        return processBitmap(String.valueOf(data), reqWidth, reqHeight, null);
+	    }
+
+	    @Override
+	    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight,
+	    		CancelSignal signal) {
+	        return processBitmap(String.valueOf(data), reqWidth, reqHeight, signal);
 	    }
 	    
 
 	    /**
-	     * Obtiene un bitmap dado un ID de Contacto, lo escribe a disco y devuelve un puntero a un File. Esta es
-	     * implementación de una caché de disco simple.
+	     * Obtiene la foto dado un ID de Contacto, escribe sus bytes originales a disco y devuelve un puntero
+	     * a un File. Esta es implementación de una caché de disco simple.
 	     *
 	     * @param context El contexto a utilizar
 	     * @param id El ID del contacto a recuperar
 	     * @return Un File apuntando al bitmap recuperado
 	     */
 		public static File retrieveBitmap(Context context, String idContact) {
-	    	
-	        final File cacheDir = DiskLruCache.getDiskCacheDir(context, CACHE_DIR);
-
-	        final DiskLruCache cache = DiskLruCache.openCache(context, cacheDir, CACHE_SIZE);
-
-	        final File cacheFile = new File(cache.createFilePath(idContact));
-	        
-	        // Si el bitmap está en la caché devuelve el cacheFile
-	        if (cache.containsKey(idContact)) {
-	            Log.d(TAG, "retrieveBitmap - Encontrado un idContact en la caché : " + idContact);
-	            return cacheFile;
-	        } 
-	        	// Recupera el Bitmap dado un idContact y devuelve el cacheFile
-		        Log.d(TAG, "retrieveBitmap - recuperando - " + idContact);
-		        
+			return retrieveBitmap(context, idContact, null);
+		}
+
+	    /**
+	     * Como {@link #retrieveBitmap(Context, String)} pero sin lanzar la consulta de la foto ni
+	     * escribirla en la caché si la carga se cancela.
+	     *
+	     * @param signal La señal de cancelación de la carga o null
+	     * @return Un File apuntando al bitmap recuperado o null si no está o se canceló
+	     */
+		public static File retrieveBitmap(Context context, String idContact, CancelSignal signal) {
+	        final DiskLruCache cache = getStaticPhotoCache(context);
+	        if (cache == null) {
+	        	return null;
+	        }
+	        return retrieveBitmap(cache, idContact, signal);
+		}
+
+		private static File retrieveBitmap(DiskLruCache cache, String idContact,
+				CancelSignal signal) {
+		        final File cacheFile = new File(cache.createFilePath(idContact));
 		        
-		        final Bitmap bitmap = getPhotoBitmapFromContactId(idContact);
-		        if(bitmap!=null){
-			        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			        bitmap.compress(ImageCache.DEFAULT_COMPRESS_FORMAT,
-			        		ImageCache.DEFAULT_COMPRESS_QUALITY, stream);
+		        // Si el bitmap está en la caché devuelve el cacheFile
+		        if (cache.containsKey(idContact)) {
+		            Log.d(TAG, "retrieveBitmap - Encontrado un idContact en la caché : " + idContact);
+		            return cacheFile;
+		        } 
+		        	// Recupera el Bitmap dado un idContact y devuelve el cacheFile
+			        Log.d(TAG, "retrieveBitmap - recuperando - " + idContact);
 			        
-			        try {
-						FileOutputStream fos = new FileOutputStream(cacheFile);
-						fos.write(stream.toByteArray());
-						fos.close();
-						stream.close();
-						return cacheFile;
-					} catch (FileNotFoundException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-		        }
-		        
-				return null;
-	        }
+			        
+			        // El blob ya está codificado (JPEG/PNG), se escribe tal cual sin decodificarlo
+			        final long start = System.nanoTime();
+			        final PhotoBlob photo = getPhotoBlobFromContactId(idContact, signal);
+			        CacheStats.getDefault().recordTime(CacheStats.PROVIDER_FETCH_TIME, start);
+			        CacheStats.getDefault().record(CacheStats.PROVIDER_FETCH);
+			        // Una carga abandonada no escribe en la caché
+			        if(photo!=null && !CancelSignal.isCanceled(signal)){
+			        	// Se escribe a través de la caché para que quede registrado en el journal,
+			        	// con la versión de la foto para poder revalidarla
+			        	cache.put(idContact, photo.data, photo.tag);
+			        	if (cache.containsKey(idContact)) {
+			        		return cacheFile;
+			        	}
+			        }
+			        
+					return null;
+		}
 		
 		
-		private static Bitmap getPhotoBitmapFromContactId(String contactId) {
+		/**
+		 * Consulta el ID de foto del contacto y después su blob. Las consultas se hacen con el
+		 * ContentResolver y no con managedQuery, que ata el cursor a la actividad aunque se use desde
+		 * un hilo de background. Entre una consulta y la siguiente se comprueba la cancelación.
+		 */
+		private static PhotoBlob getPhotoBlobFromContactId(String contactId, CancelSignal signal) {
+			if (CancelSignal.isCanceled(signal)) {
+				return null;
+			}
 			final String[] projection = new String[] {
 					Contacts.PHOTO_ID				// el id de la columna en la tabla de datos para la imagen
 			};
 
-			@SuppressWarnings("deprecation")
-			final Cursor contact = ((Activity) mContext).managedQuery(
+			final Cursor contact = mContext.getContentResolver().query(
 					Contacts.CONTENT_URI,
 					projection,
 					Contacts._ID + "=?",			// entradas filtradas basadas en el id de contacto
 					new String[]{contactId},	
 					null);
+			if (contact == null) {
+				return null;
+			}
 			
 			if(contact.moveToFirst()) {
 				final String photoId = contact.getString(
 						contact.getColumnIndex(Contacts.PHOTO_ID));
-				final Bitmap photo;
-				if(photoId != null) {
-					photo = getPhotoBitmapFromPhotoId(photoId);
-				} else {
-					photo = null;
-				}
 				contact.close();
-				return photo;
+				if(photoId != null && !CancelSignal.isCanceled(signal)) {
+					return getPhotoBlobFromPhotoId(photoId);
+				}
+				return null;
 			}
 			contact.close();
 			return null;
 		}
 
-		private static Bitmap getPhotoBitmapFromPhotoId(String photoId) {
-			@SuppressWarnings("deprecation")
-			final Cursor photo = ((Activity) mContext).managedQuery(
+		private static PhotoBlob getPhotoBlobFromPhotoId(String photoId) {
+			final Cursor photo = mContext.getContentResolver().query(
 					Data.CONTENT_URI,
-					new String[] {Photo.PHOTO},		// columna donde está guardado el blob
+					new String[] {Photo.PHOTO,		// columna donde está guardado el blob
+							Data.DATA_VERSION},		// versión de la fila, cambia con la foto
 					Data._ID + "=?",				// fila seleccionada por id
 					new String[]{photoId},			// filtrado por el idPhoto dado
 					null);
+			if (photo == null) {
+				return null;
+			}
 			
-			final Bitmap photoBitmap;
+			PhotoBlob photoBlob = null;
 			if(photo.moveToFirst()) {
-				byte[] photoBlob = photo.getBlob(
+				final byte[] data = photo.getBlob(
 						photo.getColumnIndex(Photo.PHOTO));
-				photoBitmap = BitmapFactory.decodeByteArray(
-						photoBlob, 0, photoBlob.length);
-			} else {
-				photoBitmap = null;
+				if (data != null) {
+					photoBlob = new PhotoBlob(data, makeTag(photoId,
+							photo.getString(photo.getColumnIndex(Data.DATA_VERSION))));
+				}
 			}
 			photo.close();
-			return photoBitmap;
+			return photoBlob;
 		}
 		
 }
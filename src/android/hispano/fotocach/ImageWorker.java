@@ -2,11 +2,15 @@ package android.hispano.fotocach;
 
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.app.Activity;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
@@ -16,12 +20,11 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.net.Uri;
-import android.os.AsyncTask;
-import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract.Contacts;
 import android.util.Log;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 public abstract class ImageWorker {
@@ -32,6 +35,21 @@ public abstract class ImageWorker {
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
     private boolean mExitTasksEarly = false;
+    private boolean mExactSize = false;
+    private volatile boolean mPaused = false;
+
+    private LoaderExecutor mLoaderExecutor = LoaderExecutor.getDefault();
+
+    // Entrega de resultados en el hilo de UI
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // Tasks en ejecución por ID de contacto, solo se accede desde el hilo de UI
+    private final Map<String, BitmapWorkerTask> mInFlightTasks =
+            new HashMap<String, BitmapWorkerTask>();
+
+    // Etapas retenidas mientras el ImageWorker está en pausa, en orden de llegada
+    private final List<BitmapWorkerTask.Stage> mHeldStages =
+            new ArrayList<BitmapWorkerTask.Stage>();
 
     protected static Context mContext;
 
@@ -39,6 +57,9 @@ public abstract class ImageWorker {
         mContext = context;
     }
     
+    // Emails que esperan al índice por ImageView, solo se accede desde el hilo de UI
+    private final Map<ImageView, String> mPendingEmails = new WeakHashMap<ImageView, String>();
+
     private static Map<String, String> contactsMap;
     public static void setContactsMap(Map<String, String> result) {
 		contactsMap = result;
@@ -49,30 +70,57 @@ public abstract class ImageWorker {
      * {@link ImageWorker#processBitmap(Object)} para definir la lógica de precesamiento). Una caché de memoria
      * y disco se usarán si un {@link ImageCache} ha sido establecido usando
      * {@link ImageWorker#setImageCache(ImageCache)}. Si se encuentra la imagen en la caché de memoria, la
-     * establece imediatamente, de lo contrario un {@link AsyncTask} será creado para de manera asíncrona cargue el
-     * bitmap.
+     * establece imediatamente, de lo contrario un task será encolado en el {@link LoaderExecutor} para
+     * que de manera asíncrona cargue el bitmap.
+     *
+     * El tamaño a decodificar se deduce del ImageView, ver
+     * {@link #loadImage(String, String, String, ImageView, int, int)}.
      *
      * @param data El MAIL de la imagen a descargar.
      * @param imageView El ImageView para unir la imagen recuperada.
      */
     public void loadImage(String idContact, String idPhoto, String email, ImageView imageView) {
+        loadImage(idContact, idPhoto, email, imageView, 0, 0);
+    }
+
+    /**
+     * Como {@link #loadImage(String, String, String, ImageView)} pero decodificando la imagen al
+     * tamaño pedido en lugar de a su resolución original. Si el ancho y el alto son 0 se usa el
+     * tamaño del ImageView o, si todavía no se ha medido, el de sus LayoutParams.
+     *
+     * @param reqWidth El ancho en píxeles en el que se mostrará la imagen o 0
+     * @param reqHeight El alto en píxeles en el que se mostrará la imagen o 0
+     */
+    public void loadImage(String idContact, String idPhoto, String email, ImageView imageView,
+            int reqWidth, int reqHeight) {
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            reqWidth = getRequestedSize(imageView.getWidth(), imageView.getLayoutParams(), true);
+            reqHeight = getRequestedSize(imageView.getHeight(), imageView.getLayoutParams(), false);
+        }
         
         // Carga por email
         if(email!=null && idContact==null && idPhoto==null){
+        	mPendingEmails.remove(imageView);
 	        if(contactsMap!=null){
 	        	idContact = contactsMap.get(email);
 	        } else {
-	        	contactsMap = getContactsMapWithOutTask();
-	        	idContact = contactsMap.get(email);
+	        	final ContactEmailIndex index = ContactEmailIndex.getInstance(mContext);
+	        	if (!index.isReady()) {
+	        		// El índice se está cargando en background: muestra el placeholder y
+	        		// repite la carga cuando esté listo si el ImageView sigue esperando este email
+	        		waitForEmailIndex(index, email, imageView, reqWidth, reqHeight);
+	        		return;
+	        	}
+	        	idContact = index.get(email);
 	        }
 	        if(idContact!=null){
-		       loadImage(idContact, imageView);
+		       loadImage(idContact, imageView, reqWidth, reqHeight);
 	        }
         }
         
         // Carga por ID de Contacto
         else if(email==null && idContact!=null && idPhoto==null){
-        	loadImage(idContact, imageView);
+        	loadImage(idContact, imageView, reqWidth, reqHeight);
         }             
         
         // Carga por ID de Foto
@@ -93,60 +141,102 @@ public abstract class ImageWorker {
 				 id = contact.getString(
 						contact.getColumnIndex(Contacts._ID));
 			}
-			loadImage(id, imageView);
+			loadImage(id, imageView, reqWidth, reqHeight);
 		}
     }
 
+    /**
+     * Devuelve el tamaño medido de la vista o, si aún no se ha medido, el fijado en sus
+     * LayoutParams. 0 si no se conoce.
+     */
+    private static int getRequestedSize(int measured, ViewGroup.LayoutParams params,
+            boolean width) {
+        if (measured > 0) {
+            return measured;
+        }
+        if (params != null) {
+            final int size = width ? params.width : params.height;
+            if (size > 0) {
+                return size;
+            }
+        }
+        return 0;
+    }
+
 
-    private void loadImage(String idContact, ImageView imageView) {
+    private void loadImage(String idContact, ImageView imageView, int reqWidth, int reqHeight) {
+    	mPendingEmails.remove(imageView);
     	Bitmap bitmap = null;
     	 if (mImageCache != null) {
-	            bitmap = mImageCache.getBitmapFromMemCache(idContact);
+	            bitmap = mImageCache.getBitmapFromMemCache(idContact, reqWidth, reqHeight,
+	                    imageView);
 	        }
 	
 	        if (bitmap != null) {
 	            // Bitmap encontrado en la caché de memoria
 	            imageView.setImageBitmap(bitmap);
 	        } else if (cancelPotentialWork(idContact, imageView)) {
-	        	// De lo contrario ejecuta el AsyncTask para recuperar el bitmap
-	            final BitmapWorkerTask task = new BitmapWorkerTask(imageView);
+	        	// De lo contrario ejecuta el BitmapWorkerTask para recuperar el bitmap
+	            final BitmapWorkerTask task = new BitmapWorkerTask(imageView, reqWidth, reqHeight);
+	            task.data = idContact;
+	            final String flightKey = task.getFlightKey();
 	            final AsyncDrawable asyncDrawable =
 	                    new AsyncDrawable(mContext.getResources(), mLoadingBitmap, task);
 	            imageView.setImageDrawable(asyncDrawable);
-	            task.execute(idContact);
+	            clearDisplayed(imageView);
+
+	            // Si ya hay un task cargando este contacto se suscribe a su resultado en lugar
+	            // de repetir la consulta y el decode
+	            final BitmapWorkerTask inFlightTask = mInFlightTasks.get(flightKey);
+	            if (inFlightTask != null && !inFlightTask.isCancelled()) {
+	            	inFlightTask.addFollower(task);
+	            } else {
+	            	mInFlightTasks.put(flightKey, task);
+	            	task.execute(idContact);
+	            }
 	        }
 	}
 
-	private Map<String, String> getContactsMapWithOutTask() {
-    	String id;
-        Uri uri = Contacts.CONTENT_URI;
-        String[] projection = new String[] {
-                Contacts._ID,
-        };
-        String selection = null;
-        String[] selectionArgs = null;
-        String sortOrder = null;
-        Cursor cursor = ((Activity) mContext).managedQuery(uri, projection, selection, selectionArgs, sortOrder);
-
-        ContentResolver cResolver = mContext.getContentResolver();
-    	Map<String, String> mapa = new HashMap<String, String>();
-        if(cursor.getCount() > 0){
-        	while(cursor.moveToNext()){
-        		id = cursor.getString(cursor.getColumnIndex(ContactsContract.Contacts._ID));
-        		
-        		Cursor cmail = cResolver.query(CommonDataKinds.Email.CONTENT_URI,
-                        new String[] { CommonDataKinds.Email.DATA,
-                            CommonDataKinds.Email.TYPE},
-                            CommonDataKinds.Email.CONTACT_ID + "='" + id + "'", null, null);
-		           while(cmail.moveToNext()){
-		             mapa.put(cmail.getString(cmail.getColumnIndex(CommonDataKinds.Email.DATA)), id);
-             	}
-		         cmail.close();
-   	          }
-        }
-        cursor.close();
-		return mapa;
-	}
+    private void waitForEmailIndex(ContactEmailIndex index, String email, ImageView imageView,
+            int reqWidth, int reqHeight) {
+        cancelWork(imageView);
+        imageView.setImageBitmap(mLoadingBitmap);
+        clearDisplayed(imageView);
+        mPendingEmails.put(imageView, email);
+        index.runWhenReady(new PendingEmailLoad(this, email, imageView, reqWidth, reqHeight));
+    }
+
+    /**
+     * La carga de un ImageView que espera al índice de emails. Construir el índice puede tardar
+     * segundos, así que solo guarda referencias débiles al ImageView, y con él a la actividad, y
+     * al ImageWorker, como hacen {@link AsyncDrawable} y {@link BitmapWorkerTask}.
+     */
+    private static class PendingEmailLoad implements Runnable {
+        private final WeakReference<ImageWorker> mWorkerReference;
+        private final WeakReference<ImageView> mImageViewReference;
+        private final String mEmail;
+        private final int mReqWidth;
+        private final int mReqHeight;
+
+        PendingEmailLoad(ImageWorker worker, String email, ImageView imageView, int reqWidth,
+                int reqHeight) {
+            mWorkerReference = new WeakReference<ImageWorker>(worker);
+            mImageViewReference = new WeakReference<ImageView>(imageView);
+            mEmail = email;
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+        }
+
+        @Override
+        public void run() {
+            final ImageWorker worker = mWorkerReference.get();
+            final ImageView imageView = mImageViewReference.get();
+            if (worker != null && imageView != null
+                    && mEmail.equals(worker.mPendingEmails.get(imageView))) {
+                worker.loadImage(null, null, mEmail, imageView, mReqWidth, mReqHeight);
+            }
+        }
+    }
     
 
 	/**
@@ -184,6 +274,21 @@ public abstract class ImageWorker {
         return mImageCache;
     }
 
+    /**
+     * Establece el {@link LoaderExecutor} que planifica las cargas de este ImageWorker, por
+     * ejemplo para cambiar el número de hilos. Por defecto se usa
+     * {@link LoaderExecutor#getDefault()}.
+     *
+     * @param loaderExecutor
+     */
+    public void setLoaderExecutor(LoaderExecutor loaderExecutor) {
+        mLoaderExecutor = loaderExecutor;
+    }
+
+    protected LoaderExecutor getLoaderExecutor() {
+        return mLoaderExecutor;
+    }
+
     /**
      * Si está establecido a true, la imagen será fade-in una vez que ha sido cargada por el hilo en background.
      *
@@ -193,10 +298,100 @@ public abstract class ImageWorker {
         mFadeInBitmap = fadeIn;
     }
 
+    /**
+     * Si está establecido a true, tras el submuestreo el bitmap se escala para ajustarse al tamaño
+     * pedido en {@link #loadImage(String, String, String, ImageView, int, int)}. Ocupa menos en la
+     * caché de memoria a cambio de un escalado más por cada carga.
+     *
+     * @param exactSize
+     */
+    public void setExactSize(boolean exactSize) {
+        mExactSize = exactSize;
+    }
+
     public void setExitTasksEarly(boolean exitTasksEarly) {
         mExitTasksEarly = exitTasksEarly;
     }
 
+    /**
+     * Pausa las cargas, por ejemplo mientras una lista hace fling. En pausa solo se muestran los
+     * aciertos de la caché de memoria; las lecturas de disco y las consultas al proveedor que
+     * llegan o que ya estaban en cola se retienen sin ejecutarse, en lugar de descartarse como con
+     * {@link #setExitTasksEarly(boolean)}. Lo que ya estaba en ejecución termina y se entrega.
+     */
+    public void pause() {
+        synchronized (mHeldStages) {
+            mPaused = true;
+        }
+    }
+
+    /**
+     * Reanuda las cargas retenidas por {@link #pause()}. Las de filas que ya no se ven se
+     * descartan y las demás, que son las visibles, se encolan con prioridad alta.
+     */
+    public void resume() {
+        final List<BitmapWorkerTask.Stage> held;
+        synchronized (mHeldStages) {
+            if (!mPaused) {
+                return;
+            }
+            mPaused = false;
+            held = new ArrayList<BitmapWorkerTask.Stage>(mHeldStages);
+            mHeldStages.clear();
+        }
+
+        int resumed = 0;
+        for (BitmapWorkerTask.Stage stage : held) {
+            if (stage.isStale()) {
+                stage.onDropped();
+            } else {
+                stage.resubmit(LoaderExecutor.PRIORITY_HIGH);
+                resumed++;
+            }
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "resume - reanudadas " + resumed + " de " + held.size() + " cargas");
+        }
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Retiene la etapa si el ImageWorker está en pausa. De paso descarta las retenidas que ya
+     * nadie espera, así un fling largo no acumula las cargas de las filas que pasaron.
+     *
+     * @return true si la etapa quedó retenida
+     */
+    private boolean holdIfPaused(BitmapWorkerTask.Stage stage) {
+        List<BitmapWorkerTask.Stage> dropped = null;
+        synchronized (mHeldStages) {
+            if (!mPaused) {
+                return false;
+            }
+            final Iterator<BitmapWorkerTask.Stage> it = mHeldStages.iterator();
+            while (it.hasNext()) {
+                final BitmapWorkerTask.Stage held = it.next();
+                if (held.isStale()) {
+                    it.remove();
+                    if (dropped == null) {
+                        dropped = new ArrayList<BitmapWorkerTask.Stage>();
+                    }
+                    dropped.add(held);
+                }
+            }
+            mHeldStages.add(stage);
+        }
+
+        if (dropped != null) {
+            for (BitmapWorkerTask.Stage held : dropped) {
+                held.onDropped();
+            }
+        }
+        return true;
+    }
+
     /**
      * Las Subclases deben reemplazar esto para definir cualquier proceso o trabajo que debería de ocurrir
      * para producir el bitmap final. Esto se ejecuta en un subproceso en segundo plano y será una larga 
@@ -208,10 +403,48 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Como {@link #processBitmap(Object)} pero indicando el tamaño en el que se mostrará el bitmap,
+     * para que la subclase lo decodifique submuestreado. Por defecto ignora el tamaño y escribe el
+     * bitmap de {@link #processBitmap(Object)}, que está a tamaño original, en la caché de disco.
+     *
+     * La caché de disco solo guarda originales y las cargas siempre llevan tamaño, así que una
+     * subclase que sobrescriba este método para submuestrear tiene que escribir antes el original
+     * con {@link ImageCache#addBitmapToDiskCache(String, Bitmap)},
+     * {@link ImageCache#addBytesToDiskCache(String, byte[])} o
+     * {@link ImageCache#addFileToDiskCache(String, java.io.File)}, como hace
+     * {@link ImageFetcher}; si no, sus imágenes no llegan a disco.
+     *
+     * @param data Los datos para identificar el bitmap a procesar
+     * @param reqWidth El ancho pedido o 0 para el tamaño original
+     * @param reqHeight El alto pedido o 0 para el tamaño original
+     * @return El bitmap procesado
+     */
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight) {
+        final Bitmap bitmap = processBitmap(data);
+        if (bitmap != null && mImageCache != null) {
+            mImageCache.addBitmapToDiskCache(String.valueOf(data), bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Como {@link #processBitmap(Object, int, int)} pero con la señal de cancelación de la carga.
+     * La subclase debería comprobarla entre pasos largos y pasarla al decode, así el trabajo de las
+     * filas que ya no se ven deja la CPU a las visibles. Por defecto ignora la señal.
+     *
+     * @param signal La señal que se cancela cuando nadie espera ya el bitmap
+     * @return El bitmap procesado o null si se canceló
+     */
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight,
+            CancelSignal signal) {
+        return processBitmap(data, reqWidth, reqHeight);
+    }
+
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.cancelForView();
             if (BuildConfig.DEBUG) {
                 final Object bitmapData = bitmapWorkerTask.data;
                 Log.d(TAG, "cancelWork - work cancelado para " + bitmapData);
@@ -226,10 +459,11 @@ public abstract class ImageWorker {
     public static boolean cancelPotentialWork(Object data, ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 
-        if (bitmapWorkerTask != null) {
+        // Un task cancelado ya no va a entregar nada, cuenta como si no hubiera ninguno
+        if (bitmapWorkerTask != null && !bitmapWorkerTask.isCancelled()) {
             final Object bitmapData = bitmapWorkerTask.data;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.cancelForView();
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "cancelPotentialWork - tarea cancelada para " + data);
                 }
@@ -241,6 +475,15 @@ public abstract class ImageWorker {
         return true;
     }
 
+    /**
+     * Anota en la caché que el holder ya no muestra ninguno de sus bitmaps.
+     */
+    private void clearDisplayed(Object holder) {
+        if (mImageCache != null) {
+            mImageCache.clearDisplayed(holder);
+        }
+    }
+
     /**
      * @param imageView Algún ImageView
      * @return Recupera el actual work task activo (si lo hay) asociado con este imageView.
@@ -258,60 +501,216 @@ public abstract class ImageWorker {
     }
 
     /**
-     * El AsyncTask asíncronamente procesará el bitmap.
+     * El task que asíncronamente procesará el bitmap. Se ejecuta en dos etapas en el
+     * {@link LoaderExecutor}: primero la caché de disco en su pool y, si no está ahí, el proveedor
+     * de contactos en el otro. El resultado se entrega en el hilo de UI como en un AsyncTask.
      */
-    private class BitmapWorkerTask extends AsyncTask<Object, Void, Bitmap> {
+    private class BitmapWorkerTask {
         private Object data;
         private final WeakReference<ImageView> imageViewReference;
-
-        public BitmapWorkerTask(ImageView imageView) {
+        // Tasks de otros ImageView que esperan el resultado de este. Nunca se ejecutan.
+        private final List<BitmapWorkerTask> mFollowers =
+                new CopyOnWriteArrayList<BitmapWorkerTask>();
+        private volatile boolean mCancelled = false;
+        private volatile Thread mThread;
+        // Llega a la consulta y al decode en curso para abortarlos
+        private final CancelSignal mSignal = new CancelSignal();
+        private int mPriority = LoaderExecutor.PRIORITY_NORMAL;
+        private final int mReqWidth;
+        private final int mReqHeight;
+
+        public BitmapWorkerTask(ImageView imageView, int reqWidth, int reqHeight) {
             imageViewReference = new WeakReference<ImageView>(imageView);
+            mReqWidth = reqWidth;
+            mReqHeight = reqHeight;
+        }
+
+        private void addFollower(BitmapWorkerTask follower) {
+            mFollowers.add(follower);
         }
 
         /**
-         * Proceso en Background
+         * Encola la primera etapa, la lectura de la caché de disco.
          */
-        @Override
-        protected Bitmap doInBackground(Object... params) {
+        public void execute(Object params) {
+            data = params;
+            submit(new Stage(mPriority, false));
+        }
+
+        /**
+         * Encola la etapa en su pool o, si el ImageWorker está en pausa, la retiene hasta
+         * {@link ImageWorker#resume()}.
+         */
+        private void submit(Stage stage) {
+            if (holdIfPaused(stage)) {
+                return;
+            }
+            if (stage.mOnProvider) {
+                mLoaderExecutor.executeOnProvider(stage);
+            } else {
+                mLoaderExecutor.executeOnDisk(stage);
+            }
+        }
+
+        /**
+         * Igual que {@link android.os.AsyncTask#cancel(boolean)}: marca el task como cancelado y,
+         * si se pide, interrumpe el hilo que lo está ejecutando. La señal de cancelación aborta el
+         * decode en curso y evita las siguientes consultas.
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!mCancelled) {
+                CacheStats.getDefault().record(CacheStats.CANCELLATION);
+            }
+            mCancelled = true;
+            mSignal.cancel();
+            final Thread thread = mThread;
+            if (mayInterruptIfRunning && thread != null) {
+                thread.interrupt();
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Cancela el task para su ImageView. Si otros ImageView siguen esperando el mismo
+         * resultado el trabajo continúa y solo se deja de entregar a este.
+         */
+        private void cancelForView() {
+            for (BitmapWorkerTask follower : mFollowers) {
+                if (!follower.isCancelled() && follower.getAttachedImageView() != null) {
+                    return;
+                }
+            }
+            cancel(true);
+        }
+
+        /**
+         * Devuelve true si algún ImageView, el propio o el de un follower, sigue esperando este
+         * resultado.
+         */
+        private boolean isWanted() {
+            if (getAttachedImageView() != null) {
+                return true;
+            }
+            for (BitmapWorkerTask follower : mFollowers) {
+                if (!follower.isCancelled() && follower.getAttachedImageView() != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Primera etapa en background: la caché de disco. Si no está ahí pasa la carga al pool
+         * del proveedor sin entregar nada todavía.
+         */
+        private void loadFromDisk() {
         	Bitmap bitmap = null;
-        	data = params[0];
         	final String idPhoto = String.valueOf(data);
-		
-		            // Si la caché de imagen está disponible y este task no ha sido cancelado por otro 
-		            // hilo y el ImageView que fue desde un principio destinado a este task está adjunto y nuestro 
-		            // flag de "retirada-prematura" no estaba establecido, entonces intentará recuperar el bitmap 
-		            // desde la caché.
-		            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-		                    && !mExitTasksEarly) {
-		                bitmap = mImageCache.getBitmapFromDiskCache(idPhoto);
-		            }
-		
-		            // Si el bitmap no fue encontrado en la caché y este task no ha sido cancelado por otro
-		            // hilo y el ImageView que estaba originalmente destinado a este task continúa adjunto y nuestro  
-		            // flag de "retirada-prematura" no estaba establecido, entonces 
-		            // llamará al método de proceso principal (aplicado por una subclase).
-		            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-		                    && !mExitTasksEarly) {
-		                bitmap = processBitmap(idPhoto);
-		            }
-		
-		            // Si el bitmap se procesó y la caché de imágenes está disponible, a continuación,
-		            // añade el bitmap procesado en la caché de memoria para su utilización futura.
-		            // A tener en cuenta que no comprueba si el task se ha cancelado aquí, si lo fue, el hilo
-		            // se estaría ejecutando aún, podemos también añadir el bitmap procesado a nuestra caché de memoria,
-		            // ya que podría ser utilizado de nuevo en el futuro.
-		            if (bitmap != null && mImageCache != null) {
-		                mImageCache.addBitmapToCache(idPhoto, bitmap);
-		            }
-			return bitmap;
-        }
-        	
+
+            // Si la caché de imagen está disponible y este task no ha sido cancelado por otro 
+            // hilo y el ImageView que fue desde un principio destinado a este task está adjunto y nuestro 
+            // flag de "retirada-prematura" no estaba establecido, entonces intentará recuperar el bitmap 
+            // desde la caché.
+            if (mImageCache != null && !isCancelled() && isWanted()
+                    && !mExitTasksEarly) {
+                bitmap = mImageCache.getBitmapFromDiskCache(idPhoto, mReqWidth, mReqHeight,
+                        mSignal);
+            }
+
+            if (bitmap == null && !isCancelled() && isWanted() && !mExitTasksEarly) {
+            	submit(new Stage(mPriority, true));
+            	return;
+            }
+
+            // Un acierto de disco se añade también a la caché de memoria, salvo que ya nadie lo
+            // espere
+            if (bitmap != null && mImageCache != null && !isCancelled()) {
+                bitmap = scaleIfNeeded(bitmap);
+                hold(bitmap);
+                mImageCache.addBitmapToCache(idPhoto, mReqWidth, mReqHeight, bitmap);
+            }
+            postResult(bitmap);
+        }
+
+        /**
+         * Segunda etapa en background: el proveedor de contactos.
+         */
+        private void loadFromProvider() {
+        	Bitmap bitmap = null;
+        	final String idPhoto = String.valueOf(data);
+
+            // Si el bitmap no fue encontrado en la caché y este task no ha sido cancelado por otro
+            // hilo y el ImageView que estaba originalmente destinado a este task continúa adjunto y nuestro  
+            // flag de "retirada-prematura" no estaba establecido, entonces 
+            // llamará al método de proceso principal (aplicado por una subclase).
+            if (!isCancelled() && isWanted() && !mExitTasksEarly) {
+                bitmap = processBitmap(idPhoto, mReqWidth, mReqHeight, mSignal);
+            }
+
+            // Si el bitmap se procesó y la caché de imágenes está disponible, a continuación,
+            // añade el bitmap procesado en la caché de memoria para su utilización futura.
+            // Si el task se canceló mientras tanto no se guarda nada, la fila ya no está en
+            // pantalla. postResult devuelve el bitmap al pool.
+            if (isCancelled()) {
+                postResult(bitmap);
+                return;
+            }
+            bitmap = scaleIfNeeded(bitmap);
+            if (bitmap != null && mImageCache != null) {
+                hold(bitmap);
+                mImageCache.addBitmapToCache(idPhoto, mReqWidth, mReqHeight, bitmap);
+            }
+            postResult(bitmap);
+        }
+
+        private Bitmap scaleIfNeeded(Bitmap bitmap) {
+            if (mExactSize) {
+                return BitmapDecoder.scaleToRequestedSize(bitmap, mReqWidth, mReqHeight);
+            }
+            return bitmap;
+        }
+
+        /**
+         * Retiene el bitmap a nombre del task hasta que se entrega, para que no pase al pool si
+         * sale de la caché de memoria antes de llegar a pantalla.
+         */
+        private void hold(Bitmap bitmap) {
+            if (bitmap != null && mImageCache != null) {
+                mImageCache.setDisplayed(this, String.valueOf(data), mReqWidth, mReqHeight,
+                        bitmap);
+            }
+        }
+
+        /**
+         * Entrega el resultado en el hilo de UI.
+         */
+        private void postResult(final Bitmap bitmap) {
+        	hold(bitmap);
+        	sMainHandler.post(new Runnable() {
+        		@Override
+        		public void run() {
+        			if (isCancelled()) {
+        				onCancelled();
+        			} else {
+        				onPostExecute(bitmap);
+        			}
+        			// El task suelta el bitmap. Si nadie llegó a mostrarlo ni está en la caché de
+        			// memoria, su memoria puede reutilizarse
+        			clearDisplayed(BitmapWorkerTask.this);
+        		}
+        	});
+        }
 
         /**
          * Una vez la imagen es procesada, la asocia al imageView
          */
-        @Override
         protected void onPostExecute(Bitmap bitmap) {
+            removeInFlight();
+
             // if cancel was called on this task or the "exit early" flag is set then we're done
             if (isCancelled() || mExitTasksEarly) {
                 bitmap = null;
@@ -319,10 +718,114 @@ public abstract class ImageWorker {
 
             final ImageView imageView = getAttachedImageView();
             if (bitmap != null && imageView != null) {
-                setImageBitmap(imageView, bitmap);
+                showResult(imageView, bitmap);
+            }
+
+            // Entrega el mismo bitmap a todos los ImageView suscritos que sigan esperándolo
+            for (BitmapWorkerTask follower : mFollowers) {
+                final ImageView followerView = follower.getAttachedImageView();
+                if (bitmap != null && !follower.isCancelled() && followerView != null) {
+                    showResult(followerView, bitmap);
+                }
+            }
+            mFollowers.clear();
+        }
+
+        private void showResult(ImageView imageView, Bitmap bitmap) {
+            if (mImageCache != null) {
+                mImageCache.setDisplayed(imageView, String.valueOf(data), mReqWidth, mReqHeight,
+                        bitmap);
+            }
+            setImageBitmap(imageView, bitmap);
+        }
+
+        protected void onCancelled() {
+            removeInFlight();
+
+            // Los ImageView que aún muestran este task se quedan con el placeholder pero sin el
+            // AsyncDrawable, así la próxima carga del mismo contacto no lo toma por una en curso
+            detachFromView(getAttachedImageView());
+            for (BitmapWorkerTask follower : mFollowers) {
+                detachFromView(follower.getAttachedImageView());
+            }
+            mFollowers.clear();
+        }
+
+        private void detachFromView(ImageView imageView) {
+            if (imageView != null) {
+                imageView.setImageBitmap(mLoadingBitmap);
+                clearDisplayed(imageView);
             }
         }
 
+        /**
+         * Una etapa del task en el {@link LoaderExecutor}: la caché de disco o el proveedor. Los
+         * trabajos de tasks cancelados o cuyo ImageView ya muestra otra cosa se descartan sin
+         * ejecutarse, y los que salen de la cola con el ImageWorker en pausa se retienen.
+         */
+        private class Stage extends LoaderExecutor.Job {
+        	private final boolean mOnProvider;
+
+        	Stage(int priority, boolean onProvider) {
+        		super(priority);
+        		mOnProvider = onProvider;
+        	}
+
+        	/**
+        	 * Vuelve a encolar la etapa retenida, con la nueva prioridad también para las etapas
+        	 * siguientes del task.
+        	 */
+        	private void resubmit(int priority) {
+        		BitmapWorkerTask.this.mPriority = priority;
+        		submit(new Stage(priority, mOnProvider));
+        	}
+
+        	@Override
+        	protected void execute() {
+        		if (holdIfPaused(this)) {
+        			return;
+        		}
+        		// Limpia una posible interrupción destinada a un trabajo anterior de este hilo
+        		Thread.interrupted();
+        		mThread = Thread.currentThread();
+        		try {
+        			if (mOnProvider) {
+        				loadFromProvider();
+        			} else {
+        				loadFromDisk();
+        			}
+        		} finally {
+        			mThread = null;
+        			Thread.interrupted();
+        		}
+        	}
+
+        	@Override
+        	protected boolean isStale() {
+        		return isCancelled() || mExitTasksEarly || !isWanted();
+        	}
+
+        	@Override
+        	protected void onDropped() {
+        		cancel(false);
+        		postResult(null);
+        	}
+        }
+
+        private void removeInFlight() {
+            final String flightKey = getFlightKey();
+            if (mInFlightTasks.get(flightKey) == this) {
+                mInFlightTasks.remove(flightKey);
+            }
+        }
+
+        /**
+         * La clave en el registro de tasks en ejecución: el contacto y el tamaño pedido.
+         */
+        private String getFlightKey() {
+            return ImageCache.getMemoryCacheKey(String.valueOf(data), mReqWidth, mReqHeight);
+        }
+
         /**
          * Devuelve el ImageView asociado con este task como mucho como el task del ImageView apunta
          * a este task también. De lo contrario devuelve null.
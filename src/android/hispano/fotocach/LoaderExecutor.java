@@ -0,0 +1,193 @@
+package android.hispano.fotocach;
+
+import java.util.Iterator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Planificador de los trabajos de carga de imágenes. Tiene dos pools de hilos separados, uno para
+ * las lecturas de la caché de disco y otro para las consultas al proveedor de contactos, de forma
+ * que una consulta lenta no retrasa los aciertos de disco.
+ *
+ * Cada pool tiene una cola con prioridad: primero los trabajos de mayor prioridad y, entre los de
+ * la misma prioridad, los más recientes (LIFO), que durante un fling son las filas visibles. Si la
+ * cola supera su profundidad máxima se descartan los trabajos obsoletos. Los que alguien sigue
+ * esperando nunca se descartan, aunque la cola quede por encima de la profundidad máxima.
+ */
+public class LoaderExecutor {
+    private static final String TAG = "LoaderExecutor";
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_HIGH = 10;
+
+    // Valores por defecto
+    public static final int DEFAULT_DISK_THREADS = 2;
+    public static final int DEFAULT_PROVIDER_THREADS = 2;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 48;
+
+    private static final long KEEP_ALIVE_SECONDS = 1;
+
+    private static LoaderExecutor sDefault;
+
+    private final ThreadPoolExecutor mDiskPool;
+    private final ThreadPoolExecutor mProviderPool;
+    private final int mMaxQueueDepth;
+    private final boolean mLifo;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * Crea un planificador con los valores por defecto y orden LIFO.
+     */
+    public LoaderExecutor() {
+        this(DEFAULT_DISK_THREADS, DEFAULT_PROVIDER_THREADS, DEFAULT_MAX_QUEUE_DEPTH, true);
+    }
+
+    /**
+     * @param diskThreads Número de hilos para las lecturas de la caché de disco
+     * @param providerThreads Número de hilos para las consultas al proveedor de contactos
+     * @param maxQueueDepth Número máximo de trabajos en espera por pool
+     * @param lifo true para servir primero los trabajos más recientes de la misma prioridad
+     */
+    public LoaderExecutor(int diskThreads, int providerThreads, int maxQueueDepth, boolean lifo) {
+        mMaxQueueDepth = maxQueueDepth;
+        mLifo = lifo;
+        mDiskPool = createPool("disk", diskThreads);
+        mProviderPool = createPool("provider", providerThreads);
+    }
+
+    /**
+     * Devuelve el planificador compartido por todos los ImageWorker que no tienen uno propio.
+     */
+    public static synchronized LoaderExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new LoaderExecutor();
+        }
+        return sDefault;
+    }
+
+    private ThreadPoolExecutor createPool(final String name, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "FotoCach-" + name + "-" + count.incrementAndGet());
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), factory);
+    }
+
+    /**
+     * Encola un trabajo de lectura de la caché de disco.
+     */
+    void executeOnDisk(Job job) {
+        enqueue(mDiskPool, job);
+    }
+
+    /**
+     * Encola un trabajo de consulta al proveedor de contactos.
+     */
+    void executeOnProvider(Job job) {
+        enqueue(mProviderPool, job);
+    }
+
+    private void enqueue(ThreadPoolExecutor pool, Job job) {
+        job.mSequence = mSequence.incrementAndGet();
+        job.mLifo = mLifo;
+        job.mEnqueueTime = System.nanoTime();
+        pool.execute(job);
+
+        // Limita la profundidad de la cola descartando los trabajos obsoletos
+        while (pool.getQueue().size() > mMaxQueueDepth) {
+            final Job dropped = findDroppable(pool);
+            if (dropped == null || !pool.remove(dropped)) {
+                break;
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "enqueue - descartado un trabajo por profundidad de cola");
+            }
+            dropped.onDropped();
+        }
+    }
+
+    /**
+     * Busca un trabajo obsoleto para descartar. Devuelve null si todos siguen siendo necesarios:
+     * descartar uno de ellos dejaría su ImageView esperando una imagen que no va a llegar.
+     */
+    private static Job findDroppable(ThreadPoolExecutor pool) {
+        final Iterator<Runnable> it = pool.getQueue().iterator();
+        while (it.hasNext()) {
+            final Job job = (Job) it.next();
+            if (job.isStale()) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Un trabajo planificable. Los trabajos obsoletos no se ejecutan, se notifica
+     * {@link #onDropped()} en su lugar.
+     */
+    abstract static class Job implements Runnable, Comparable<Job> {
+        private final int mPriority;
+        private long mSequence;
+        private boolean mLifo;
+        private long mEnqueueTime;
+
+        Job(int priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public final void run() {
+            CacheStats.getDefault().recordTime(CacheStats.QUEUE_WAIT_TIME, mEnqueueTime);
+            if (isStale()) {
+                onDropped();
+                return;
+            }
+            execute();
+        }
+
+        /**
+         * El trabajo en sí, se ejecuta en un hilo del pool.
+         */
+        protected abstract void execute();
+
+        /**
+         * Devuelve true si el resultado ya no le interesa a nadie.
+         */
+        protected abstract boolean isStale();
+
+        /**
+         * Llamado cuando el trabajo se descarta sin ejecutarse.
+         */
+        protected abstract void onDropped();
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            if (mSequence == other.mSequence) {
+                return 0;
+            }
+            final boolean newer = mSequence > other.mSequence;
+            return newer == mLifo ? -1 : 1;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package android.hispano.fotocach;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caché en memoria limitada por tamaño con la misma interfaz que
+ * {@link android.support.v4.util.LruCache}, pero que delega en una {@link EvictionPolicy} la
+ * elección de qué entrada sale. Con una política de admisión la entrada recién añadida puede ser
+ * la que se descarta; en ese caso no se notifica {@link #entryRemoved}, porque quien la añadió
+ * la sigue usando.
+ *
+ * @param <V> El tipo de los valores
+ */
+public class MemoryCache<V> {
+    private final Map<String, V> mMap = new HashMap<String, V>();
+    private final EvictionPolicy mPolicy;
+    private int mSize = 0;
+    private int mMaxSize;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+    private int mEvictionCount = 0;
+
+    /**
+     * @param maxSize El tamaño máximo en las unidades de {@link #sizeOf}
+     * @param policy La política de expulsión, que no se debe compartir con otra caché
+     */
+    public MemoryCache(int maxSize, EvictionPolicy policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mPolicy = policy;
+    }
+
+    /**
+     * Devuelve el valor de la clave o null, y lo cuenta como un acceso para la política.
+     */
+    public final V get(String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            mPolicy.onAccess(key);
+            final V value = mMap.get(key);
+            if (value != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Devuelve el valor de la clave o null sin contarlo como un acceso.
+     */
+    public final synchronized V peek(String key) {
+        return mMap.get(key);
+    }
+
+    /**
+     * Añade el valor y expulsa las entradas que elija la política hasta volver al tamaño máximo.
+     *
+     * @return El valor anterior de la clave o null
+     */
+    public final V put(String key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final V previous;
+        synchronized (this) {
+            final int size = safeSizeOf(key, value);
+            mSize += size;
+            previous = mMap.put(key, value);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+                mPolicy.onRemove(key);
+            }
+            mPolicy.onInsert(key, size);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize(), key);
+        return previous;
+    }
+
+    /**
+     * Cambia el tamaño máximo de la caché, expulsando lo que sobre si se reduce.
+     *
+     * @param maxSize El nuevo tamaño máximo
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            mMaxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Expulsa entradas hasta que el tamaño no supere maxSize.
+     *
+     * @param maxSize El tamaño objetivo, -1 para vaciar la caché
+     */
+    public void trimToSize(int maxSize) {
+        trimToSize(maxSize, null);
+    }
+
+    private void trimToSize(int maxSize, String inserted) {
+        // La admisión de la clave insertada se decide en la primera expulsión
+        String candidate = inserted;
+        while (true) {
+            final String key;
+            final V value;
+            synchronized (this) {
+                if (mSize <= maxSize || mMap.isEmpty()) {
+                    break;
+                }
+                key = mPolicy.selectVictim(candidate);
+                candidate = null;
+                if (key == null) {
+                    break;
+                }
+                value = mMap.remove(key);
+                mPolicy.onRemove(key);
+                if (value == null) {
+                    continue;
+                }
+                mSize -= safeSizeOf(key, value);
+                mEvictionCount++;
+            }
+            if (!key.equals(inserted)) {
+                entryRemoved(true, key, value, null);
+            }
+        }
+    }
+
+    /**
+     * Quita la entrada de la clave.
+     *
+     * @return El valor que tenía o null
+     */
+    public final V remove(String key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final V previous;
+        synchronized (this) {
+            previous = mMap.remove(key);
+            if (previous != null) {
+                mSize -= safeSizeOf(key, previous);
+                mPolicy.onRemove(key);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Expulsa todas las entradas.
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+        synchronized (this) {
+            mPolicy.clear();
+        }
+    }
+
+    /**
+     * Devuelve una copia de las claves de la caché, sin orden.
+     */
+    public final synchronized List<String> keys() {
+        return new ArrayList<String>(mMap.keySet());
+    }
+
+    /**
+     * Devuelve las claves más valiosas según la política, de más a menos.
+     *
+     * @param max El número máximo de claves
+     */
+    public final synchronized List<String> hotKeys(int max) {
+        return mPolicy.hotKeys(max);
+    }
+
+    /**
+     * Devuelve el tamaño de la entrada en las unidades de la caché. Por defecto 1, con lo que el
+     * tamaño máximo es un número de entradas.
+     */
+    protected int sizeOf(String key, V value) {
+        return 1;
+    }
+
+    /**
+     * Llamado cuando una entrada sale de la caché, sin el bloqueo de la caché tomado.
+     *
+     * @param evicted true si salió para hacer sitio, false si se quitó o se reemplazó
+     */
+    protected void entryRemoved(boolean evicted, String key, V oldValue, V newValue) {
+    }
+
+    private int safeSizeOf(String key, V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    public final synchronized int size() {
+        return mSize;
+    }
+
+    public final synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public final synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public final synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public final synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public final synchronized String toString() {
+        return "MemoryCache[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",evictions=" + mEvictionCount + ",policy="
+                + mPolicy.getClass().getSimpleName() + "]";
+    }
+}
@@ -0,0 +1,121 @@
+package android.hispano.fotocach;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.hispano.fotocach.utils.Utils;
+
+/**
+ * Segundo nivel de la caché de memoria con los bitmaps que expulsó la caché principal, guardados
+ * con {@link SoftReference}, que el recolector libera si hace falta memoria. Al volver atrás en
+ * una lista los avatares recién expulsados se recuperan de aquí sin leer ni decodificar nada.
+ *
+ * El tamaño se limita con los bytes de los bitmaps que entran. Los que salen por tamaño y siguen
+ * vivos se notifican con {@link #entryExpelled}, para que pasen al pool de bitmaps reutilizables.
+ */
+class SoftBitmapCache {
+    private final LinkedHashMap<String, Item> mItems =
+            new LinkedHashMap<String, Item>(32, 0.75f, true);
+    private final int mMaxSize;
+    private int mSize = 0;
+
+    private static final class Item {
+        private final SoftReference<Bitmap> reference;
+        private final int size;
+
+        private Item(Bitmap bitmap) {
+            reference = new SoftReference<Bitmap>(bitmap);
+            size = Utils.getBitmapSize(bitmap);
+        }
+    }
+
+    /**
+     * @param maxSize El tamaño máximo en bytes de los bitmaps guardados
+     */
+    SoftBitmapCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Guarda un bitmap expulsado de la caché principal.
+     */
+    void put(String key, Bitmap bitmap) {
+        // Claves y bitmaps que salen, se notifican fuera del bloqueo
+        List<String> expelledKeys = null;
+        List<Bitmap> expelledBitmaps = null;
+        synchronized (this) {
+            final Item previous = mItems.put(key, new Item(bitmap));
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            mSize += Utils.getBitmapSize(bitmap);
+
+            final Iterator<Map.Entry<String, Item>> it = mItems.entrySet().iterator();
+            while (mSize > mMaxSize && it.hasNext()) {
+                final Map.Entry<String, Item> eldest = it.next();
+                it.remove();
+                mSize -= eldest.getValue().size;
+                final Bitmap eldestBitmap = eldest.getValue().reference.get();
+                if (eldestBitmap != null && eldestBitmap != bitmap) {
+                    if (expelledKeys == null) {
+                        expelledKeys = new ArrayList<String>();
+                        expelledBitmaps = new ArrayList<Bitmap>();
+                    }
+                    expelledKeys.add(eldest.getKey());
+                    expelledBitmaps.add(eldestBitmap);
+                }
+            }
+        }
+
+        if (expelledKeys != null) {
+            for (int i = 0; i < expelledKeys.size(); i++) {
+                entryExpelled(expelledKeys.get(i), expelledBitmaps.get(i));
+            }
+        }
+    }
+
+    /**
+     * Llamado sin el bloqueo tomado cuando un bitmap todavía vivo sale por tamaño.
+     */
+    protected void entryExpelled(String key, Bitmap bitmap) {
+    }
+
+    /**
+     * Saca el bitmap de la clave para devolverlo a la caché principal.
+     *
+     * @return El bitmap o null si no está o el recolector ya lo liberó
+     */
+    synchronized Bitmap remove(String key) {
+        final Item item = mItems.remove(key);
+        if (item == null) {
+            return null;
+        }
+        mSize -= item.size;
+        return item.reference.get();
+    }
+
+    /**
+     * Devuelve true si el bitmap está guardado con esa clave.
+     */
+    synchronized boolean contains(String key, Bitmap bitmap) {
+        final Item item = mItems.get(key);
+        return item != null && item.reference.get() == bitmap;
+    }
+
+    /**
+     * Devuelve una copia de las claves guardadas.
+     */
+    synchronized List<String> keys() {
+        return new ArrayList<String>(mItems.keySet());
+    }
+
+    synchronized void clear() {
+        mItems.clear();
+        mSize = 0;
+    }
+}
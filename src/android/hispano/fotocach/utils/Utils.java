@@ -1,9 +1,15 @@
 package android.hispano.fotocach.utils;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import android.annotation.SuppressLint;
 import android.app.ActivityManager;
@@ -18,7 +24,6 @@ import android.os.StatFs;
 public class Utils {
 	
 	public static final int IO_BUFFER_SIZE = 8 * 1024;
-	private static final int DEFAULT_BUFFER_SIZE = 1024;
 	
 	private Utils() {};
 	
@@ -100,7 +105,7 @@ public class Utils {
 
 
     public static int copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
         int count = 0;
         int n = 0;
         while (-1 != (n = input.read(buffer))) {
@@ -109,6 +114,93 @@ public class Utils {
         }
         return count;
     }
+
+    /**
+     * Copia un archivo en otro con {@link FileChannel#transferTo}, sin pasar los bytes por un
+     * buffer de la aplicación.
+     *
+     * @param source El archivo de origen
+     * @param destination El archivo de destino, que se sobrescribe
+     * @return El número de bytes copiados
+     */
+    public static long copy(File source, File destination) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(destination);
+            final FileChannel inChannel = in.getChannel();
+            final FileChannel outChannel = out.getChannel();
+            final long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                final long n = inChannel.transferTo(position, size - position, outChannel);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+            }
+            return position;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Lee un archivo entero con su {@link FileChannel}. Si cabe se lee en el buffer dado, si no en
+     * uno nuevo con array.
+     *
+     * @param file El archivo a leer
+     * @param buffer Un buffer con array para reutilizar, o null
+     * @return El buffer con el contenido del archivo entre 0 y su limit
+     */
+    public static ByteBuffer readFully(File file, ByteBuffer buffer) throws IOException {
+        return readFully(file.getPath(), buffer);
+    }
+
+    /**
+     * Como {@link #readFully(File, ByteBuffer)} con la ruta del archivo. Se abre con un
+     * {@link RandomAccessFile}, sin crear un File ni un FileInputStream; cada lectura sigue
+     * abriendo el archivo una vez, porque no hay una caché de descriptores.
+     *
+     * @param path La ruta del archivo a leer
+     * @param buffer Un buffer con array para reutilizar, o null
+     * @return El buffer con el contenido del archivo entre 0 y su limit
+     */
+    public static ByteBuffer readFully(String path, ByteBuffer buffer) throws IOException {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(path, "r");
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("archivo demasiado grande: " + path);
+            }
+            if (buffer == null || buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate((int) size);
+            }
+            buffer.clear();
+            buffer.limit((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {}
+        }
+    }
     
 	
 	 /**